@@ -0,0 +1,51 @@
+package com.identityblitz.scs;
+
+/**
+ * The character sequence backed by an array of ASCII bytes. It allows to pass a header value built directly in bytes
+ * to an HTTP library which writes header values character by character, without creating an intermediate string.
+ */
+public final class AsciiCharSequence implements CharSequence {
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+
+    public AsciiCharSequence(final byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    public AsciiCharSequence(final byte[] bytes, final int offset, final int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(final int index) {
+        if(index < 0 || index >= length)
+            throw new IndexOutOfBoundsException("index: " + index + ", length: " + length);
+        return (char) (bytes[offset + index] & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(final int start, final int end) {
+        if(start < 0 || end > length || start > end)
+            throw new IndexOutOfBoundsException("start: " + start + ", end: " + end + ", length: " + length);
+        return new AsciiCharSequence(bytes, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return toString(bytes, offset, length);
+    }
+
+    @SuppressWarnings("deprecation")
+    static String toString(final byte[] bytes, final int offset, final int length) {
+        return new String(bytes, 0, offset, length);
+    }
+
+}
@@ -0,0 +1,165 @@
+package com.identityblitz.scs;
+
+import com.identityblitz.scs.error.SCSException;
+import com.identityblitz.scs.error.SCSRejectedException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.identityblitz.scs.LoggingUtils.getLogger;
+
+/**
+ * Runs the asynchronous SCS operations of {@link com.identityblitz.scs.SCSService}. The operations estimated as cheap
+ * by the offload policy are run inline on the calling thread, the others are submitted to the executor. If the executor
+ * rejects an operation, it fails with {@link com.identityblitz.scs.error.SCSRejectedException} at once.
+ */
+final class AsyncCrypto {
+    private final Executor executor;
+    private final OffloadPolicy offloadPolicy;
+
+    /**
+     * Creates the runner.
+     * @param executor - executor to run the expensive operations, if null the shared bounded executor is used.
+     * @param offloadPolicy - policy deciding which operations are expensive, if null the operations taking more than
+     *                      50 microseconds are considered expensive.
+     */
+    AsyncCrypto(final Executor executor, final OffloadPolicy offloadPolicy) {
+        this.executor = executor;
+        this.offloadPolicy = (offloadPolicy != null)?offloadPolicy:new OffloadPolicy(50000, 512);
+    }
+
+    <T> Future<T> submit(final OffloadPolicy.Operation kind, final int size, final Callable<T> operation,
+                         final SCSCallback<T> callback) {
+        final Task<T> task = new Task<T>(new Measured<T>(kind, size, operation), callback);
+        if(!offloadPolicy.isExpensive(kind, size)) {
+            task.run();
+            return task;
+        }
+        try {
+            ((executor != null)?executor:DefaultExecutorHolder.EXECUTOR).execute(task);
+        } catch (RejectedExecutionException e) {
+            getLogger().warn("SCS operation is rejected: {}.", e.getMessage());
+            task.reject();
+        }
+        return task;
+    }
+
+    /**
+     * The operation recording its cost to the offload policy. All the failures are turned into SCS exceptions.
+     */
+    private final class Measured<T> implements Callable<T> {
+        private final OffloadPolicy.Operation kind;
+        private final int size;
+        private final Callable<T> operation;
+
+        private Measured(final OffloadPolicy.Operation kind, final int size, final Callable<T> operation) {
+            this.kind = kind;
+            this.size = size;
+            this.operation = operation;
+        }
+
+        @Override
+        public T call() throws SCSException {
+            final long start = System.nanoTime();
+            try {
+                return operation.call();
+            } catch (SCSException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new SCSException(e.toString());
+            } finally {
+                offloadPolicy.record(kind, size, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static final class Task<T> extends FutureTask<T> {
+        private final SCSCallback<T> callback;
+
+        private Task(final Callable<T> callable, final SCSCallback<T> callback) {
+            super(callable);
+            this.callback = callback;
+        }
+
+        private void reject() {
+            setException(new SCSRejectedException("executor running SCS operations is overloaded"));
+        }
+
+        @Override
+        protected void done() {
+            if(callback == null)
+                return;
+            final T result;
+            try {
+                result = get();
+            } catch (ExecutionException e) {
+                notifyFailure(asSCSException(e.getCause()));
+                return;
+            } catch (CancellationException e) {
+                notifyFailure(new SCSException("SCS operation is cancelled"));
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                callback.onSuccess(result);
+            } catch (RuntimeException e) {
+                getLogger().error("SCS callback failed.", e);
+            }
+        }
+
+        /**
+         * Returns the failure of the operation as an SCS exception. The operations throw only SCS exceptions, except
+         * the errors which are passed through by {@link Measured}.
+         */
+        private static SCSException asSCSException(final Throwable cause) {
+            if(cause instanceof SCSException)
+                return (SCSException)cause;
+            getLogger().error("SCS operation failed.", cause);
+            return new SCSException(String.valueOf(cause));
+        }
+
+        private void notifyFailure(final SCSException e) {
+            try {
+                callback.onFailure(e);
+            } catch (RuntimeException re) {
+                getLogger().error("SCS callback failed.", re);
+            }
+        }
+    }
+
+    /**
+     * The shared executor used if no executor is passed. It has a thread per processor and a bounded queue, its
+     * threads are daemons and stop when idle.
+     */
+    private static final class DefaultExecutorHolder {
+        private static final ThreadPoolExecutor EXECUTOR = create();
+
+        private static ThreadPoolExecutor create() {
+            final int threads = Runtime.getRuntime().availableProcessors();
+            final AtomicInteger counter = new AtomicInteger();
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(threads * 256), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "scs-crypto-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+}
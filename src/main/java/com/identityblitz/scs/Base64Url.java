@@ -0,0 +1,113 @@
+package com.identityblitz.scs;
+
+import com.identityblitz.scs.error.SCSBrokenException;
+
+/**
+ * The collection methods to encode and decode the URL safe Base64 without padding (RFC 4648 section 5) directly
+ * into and from the passed arrays and character ranges, without the intermediate strings.
+ */
+public class Base64Url {
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes();
+    private static final int[] DECODE_TABLE = new int[128];
+    static {
+        for(int i = 0; i < DECODE_TABLE.length; i++)
+            DECODE_TABLE[i] = -1;
+        for(int i = 0; i < ALPHABET.length; i++)
+            DECODE_TABLE[ALPHABET[i]] = i;
+    }
+
+    private Base64Url() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns the length of the encoded form of the data of the specified length.
+     * @param length - length of data.
+     * @return - length of encoded data.
+     */
+    public static int encodedLength(final int length) {
+        return (length / 3) * 4 + ((length % 3 == 0)?0:(length % 3) + 1);
+    }
+
+    /**
+     * Encodes the data into the destination array starting from the specified offset.
+     * @param src - data to encode.
+     * @param dst - destination array.
+     * @param offset - offset in the destination array.
+     * @return - offset in the destination array next to the encoded data.
+     */
+    public static int encode(final byte[] src, final byte[] dst, final int offset) {
+        int o = offset;
+        int i = 0;
+        final int full = src.length - src.length % 3;
+        while(i < full) {
+            final int bits = (src[i++] & 0xff) << 16 | (src[i++] & 0xff) << 8 | (src[i++] & 0xff);
+            dst[o++] = ALPHABET[(bits >>> 18) & 0x3f];
+            dst[o++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[o++] = ALPHABET[(bits >>> 6) & 0x3f];
+            dst[o++] = ALPHABET[bits & 0x3f];
+        }
+        final int rest = src.length - full;
+        if(rest > 0) {
+            final int bits = (src[i] & 0xff) << 16 | ((rest == 2)?(src[i + 1] & 0xff) << 8:0);
+            dst[o++] = ALPHABET[(bits >>> 18) & 0x3f];
+            dst[o++] = ALPHABET[(bits >>> 12) & 0x3f];
+            if(rest == 2)
+                dst[o++] = ALPHABET[(bits >>> 6) & 0x3f];
+        }
+        return o;
+    }
+
+    /**
+     * Encodes the data into a string.
+     * @param src - data to encode.
+     * @return - encoded data.
+     */
+    public static String encodeToString(final byte[] src) {
+        final byte[] dst = new byte[encodedLength(src.length)];
+        encode(src, dst, 0);
+        return AsciiCharSequence.toString(dst, 0, dst.length);
+    }
+
+    /**
+     * Decodes the specified range of characters.
+     * @param src - characters to decode.
+     * @param from - start of the range, inclusive.
+     * @param to - end of the range, exclusive.
+     * @return - decoded data.
+     * @throws SCSBrokenException - if the range contains not a valid encoded data.
+     */
+    public static byte[] decode(final CharSequence src, final int from, final int to) throws SCSBrokenException {
+        final int length = to - from;
+        if(length % 4 == 1)
+            throw new SCSBrokenException("wrong length of base64 encoded data");
+        final byte[] dst = new byte[length / 4 * 3 + ((length % 4 == 0)?0:length % 4 - 1)];
+        int o = 0;
+        int bits = 0;
+        int count = 0;
+        for(int i = from; i < to; i++) {
+            final char c = src.charAt(i);
+            final int value = (c < 128)?DECODE_TABLE[c]:-1;
+            if(value < 0)
+                throw new SCSBrokenException("wrong character in base64 encoded data");
+            bits = bits << 6 | value;
+            if(++count == 4) {
+                dst[o++] = (byte) (bits >>> 16);
+                dst[o++] = (byte) (bits >>> 8);
+                dst[o++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if(count == 3) {
+            dst[o++] = (byte) (bits >>> 10);
+            dst[o] = (byte) (bits >>> 2);
+        }
+        else if(count == 2) {
+            dst[o] = (byte) (bits >>> 4);
+        }
+        return dst;
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.identityblitz.scs;
+
+import com.identityblitz.scs.error.SCSRejectedException;
+import com.identityblitz.scs.service.spi.ConfigurationService;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bulkhead bounding the number of the SCS decoding operations run at once, so a flood of forged cookies, each
+ * costing a full MAC computation, can't take all the processors. Encoding is not bounded: the application has
+ * already processed the request by then, and shedding it would lose the session state of a legitimate client.
+ * The operations above the concurrency limit wait for a permit while the number of the waiting ones is within
+ * the queue limit and the wait is not longer than the maximum wait time. The others are shed at once with
+ * {@link com.identityblitz.scs.error.SCSRejectedException}.
+ * The queue is meant for the glues running on the blocking threads (servlet, Play Java actions, JDK HTTP server).
+ * The I/O threads of Netty, Undertow and the Play filter must never wait, so the decodings run on them are shed at once
+ * when there is no free permit (see {@link com.identityblitz.scs.SCSService#decodeWithoutWaiting(String)}),
+ * the decodings offloaded from them (to the crypto group or to the Play dispatcher, see
+ * {@link com.identityblitz.scs.glue.play.SCSExecution}) still use the queue.
+ * The glues handle a shed decoding according to the fallback of the bulkhead: either the request is processed as if
+ * it had no SCS cookie or it is answered with 503 (Service Unavailable).
+ */
+public class Bulkhead {
+
+    /**
+     * What the glues do with a request which SCS decoding is shed.
+     */
+    public enum Fallback {
+        /**
+         * The request is processed as if it had no SCS cookie.
+         */
+        ABSENT,
+        /**
+         * The request is answered with 503 (Service Unavailable).
+         */
+        REJECT
+    }
+
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long maxWaitInMillis;
+    private final Fallback fallback;
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong shed = new AtomicLong();
+
+    /**
+     * Creates the bulkhead.
+     * @param maxConcurrent - maximum number of the operations run at once.
+     * @param maxQueued - maximum number of the operations waiting for a permit, 0 to shed at once.
+     * @param maxWaitInMillis - maximum time an operation waits for a permit in milliseconds.
+     * @param fallback - what to do with a request which SCS decoding is shed.
+     */
+    public Bulkhead(final int maxConcurrent, final int maxQueued, final long maxWaitInMillis,
+                    final Fallback fallback) {
+        if(maxConcurrent <= 0)
+            throw new IllegalArgumentException("maximum concurrency must be positive");
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.maxWaitInMillis = maxWaitInMillis;
+        this.fallback = fallback;
+        this.permits = new Semaphore(maxConcurrent);
+    }
+
+    /**
+     * Creates the bulkhead from the configuration parameters <b>com.identityblitz.scs.bulkhead.maxConcurrent</b>,
+     * <b>com.identityblitz.scs.bulkhead.maxQueued</b> (0 by default),
+     * <b>com.identityblitz.scs.bulkhead.maxWaitInMillis</b> (10 by default) and
+     * <b>com.identityblitz.scs.bulkhead.fallback</b> (ABSENT or REJECT, ABSENT by default).
+     * @param configuration - configuration.
+     * @return - bulkhead or null if the maximum concurrency is not configured.
+     */
+    public static Bulkhead fromConfiguration(final ConfigurationService configuration) {
+        final Long maxConcurrent = configuration.getLong(ConfigParameter.BULKHEAD_MAX_CONCURRENT.key());
+        if(maxConcurrent == null)
+            return null;
+        return new Bulkhead(maxConcurrent.intValue(),
+                configuration.getLong(ConfigParameter.BULKHEAD_MAX_QUEUED.key(), 0L).intValue(),
+                configuration.getLong(ConfigParameter.BULKHEAD_MAX_WAIT.key(), 10L),
+                Fallback.valueOf(configuration.getString(ConfigParameter.BULKHEAD_FALLBACK.key(),
+                        Fallback.ABSENT.name())));
+    }
+
+    /**
+     * Takes a permit to run an operation. Each successful call must be followed by {@link #release()}.
+     * @param mayWait - false if the calling thread must not wait for a permit in the queue.
+     * @throws SCSRejectedException - if the operation is shed.
+     */
+    void acquire(final boolean mayWait) throws SCSRejectedException {
+        if(permits.tryAcquire())
+            return;
+        if(!mayWait)
+            throw shed();
+        if(queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            throw shed();
+        }
+        try {
+            if(!permits.tryAcquire(maxWaitInMillis, TimeUnit.MILLISECONDS))
+                throw shed();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw shed();
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the permit taken by {@link #acquire(boolean)}.
+     */
+    void release() {
+        permits.release();
+    }
+
+    private SCSRejectedException shed() {
+        shed.incrementAndGet();
+        return new SCSRejectedException("SCS operation is shed by the bulkhead");
+    }
+
+    public Fallback getFallback() {
+        return fallback;
+    }
+
+    /**
+     * Returns the number of the operations shed so far.
+     * @return - number of the shed operations.
+     */
+    public long getShedCount() {
+        return shed.get();
+    }
+
+    /**
+     * Returns the number of the operations running at the moment.
+     * @return - number of the running operations.
+     */
+    public int getActive() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /**
+     * Returns the number of the operations waiting for a permit at the moment.
+     * @return - number of the waiting operations.
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+}
@@ -0,0 +1,23 @@
+package com.identityblitz.scs;
+
+/**
+ * The source of the current time used to stamp and to check the expiration of SCS.
+ */
+public interface Clock {
+
+    /**
+     * The clock backed by {@link System#currentTimeMillis()}.
+     */
+    public static final Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * Returns the current time in milliseconds since the epoch.
+     * @return - current time in milliseconds.
+     */
+    public long currentTimeMillis();
+}
@@ -8,6 +8,16 @@ public enum ConfigParameter {
     PLATFORM("com.identityblitz.scs.Platform"),
     USE_COMPRESSION("com.identityblitz.scs.useCompression"),
     SESSION_MAX_AGE("com.identityblitz.scs.sessionMaxAgeInSec"),
+    INCLUDE("com.identityblitz.scs.include"),
+    EXCLUDE("com.identityblitz.scs.exclude"),
+    VERIFY_ONLY("com.identityblitz.scs.verifyOnly"),
+    TRUSTED_HEADER_KEY("com.identityblitz.scs.trustedHeader.key"),
+    TRUSTED_HEADER_VALIDITY("com.identityblitz.scs.trustedHeader.validityInMillis"),
+    BULKHEAD_MAX_CONCURRENT("com.identityblitz.scs.bulkhead.maxConcurrent"),
+    BULKHEAD_MAX_QUEUED("com.identityblitz.scs.bulkhead.maxQueued"),
+    BULKHEAD_MAX_WAIT("com.identityblitz.scs.bulkhead.maxWaitInMillis"),
+    BULKHEAD_FALLBACK("com.identityblitz.scs.bulkhead.fallback"),
+    PLAY_DISPATCHER("com.identityblitz.scs.play.dispatcher"),
     ENCODE_KEY("com.identityblitz.scs.crypto.encodingKey"),
     HMAC_KEY("com.identityblitz.scs.crypto.hmacKey");
 
@@ -0,0 +1,182 @@
+package com.identityblitz.scs;
+
+/**
+ * The collection methods to work with cookie headers.
+ */
+public class CookieUtils {
+
+    private CookieUtils() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Finds the cookie with the specified name in the value of the Cookie header and returns its value. The header is
+     * scanned in place, nothing is allocated for the other cookies. The cookies may be separated by semicolons or
+     * commas, a quoted value is returned without quotes.
+     * @param header - value of the Cookie header.
+     * @param name - cookie name.
+     * @return - cookie value or null if the cookie is not found.
+     */
+    public static String findCookieValue(final String header, final String name) {
+        if(header == null)
+            return null;
+        final int len = header.length();
+        final int nameLen = name.length();
+        int i = 0;
+        while(i < len) {
+            char c = header.charAt(i);
+            if(c == ' ' || c == '\t' || c == ';' || c == ',') {
+                i++;
+                continue;
+            }
+
+            final int nameStart = i;
+            while(i < len && (c = header.charAt(i)) != '=' && c != ';' && c != ',')
+                i++;
+            int nameEnd = i;
+            while(nameEnd > nameStart && isWhitespace(header.charAt(nameEnd - 1)))
+                nameEnd--;
+            if(i == len || c != '=')
+                continue;
+
+            i++;
+            while(i < len && isWhitespace(header.charAt(i)))
+                i++;
+            final int valueStart;
+            int valueEnd;
+            if(i < len && header.charAt(i) == '"') {
+                valueStart = ++i;
+                while(i < len && header.charAt(i) != '"')
+                    i++;
+                valueEnd = i;
+                while(i < len && (c = header.charAt(i)) != ';' && c != ',')
+                    i++;
+            }
+            else {
+                valueStart = i;
+                while(i < len && (c = header.charAt(i)) != ';' && c != ',')
+                    i++;
+                valueEnd = i;
+                while(valueEnd > valueStart && isWhitespace(header.charAt(valueEnd - 1)))
+                    valueEnd--;
+            }
+
+            if(nameEnd - nameStart == nameLen && header.regionMatches(nameStart, name, 0, nameLen))
+                return header.substring(valueStart, valueEnd);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the cookie with the specified name from the value of the Cookie header. The other cookies are kept in
+     * the same order and joined with semicolons.
+     * @param header - value of the Cookie header.
+     * @param name - cookie name.
+     * @return - value of the Cookie header without the cookie or null if no cookies are left.
+     */
+    public static String removeCookie(final String header, final String name) {
+        if(header == null)
+            return null;
+        final StringBuilder builder = new StringBuilder(header.length());
+        final int len = header.length();
+        int i = 0;
+        while(i < len) {
+            char c = header.charAt(i);
+            if(c == ' ' || c == '\t' || c == ';' || c == ',') {
+                i++;
+                continue;
+            }
+
+            final int start = i;
+            boolean quoted = false;
+            while(i < len && ((c = header.charAt(i)) != ';' && c != ',' || quoted)) {
+                if(c == '"')
+                    quoted = !quoted;
+                i++;
+            }
+            int end = i;
+            while(end > start && isWhitespace(header.charAt(end - 1)))
+                end--;
+
+            int nameEnd = header.indexOf('=', start);
+            if(nameEnd < 0 || nameEnd > end)
+                nameEnd = end;
+            while(nameEnd > start && isWhitespace(header.charAt(nameEnd - 1)))
+                nameEnd--;
+            if(nameEnd - start == name.length() && header.regionMatches(start, name, 0, name.length()))
+                continue;
+
+            if(builder.length() > 0)
+                builder.append("; ");
+            builder.append(header, start, end);
+        }
+        return (builder.length() > 0)?builder.toString():null;
+    }
+
+    private static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    /**
+     * Returns true if the value of the Set-Cookie header sets the cookie with the specified name.
+     * @param header - value of the Set-Cookie header.
+     * @param name - cookie name.
+     * @return - true if the header sets the cookie.
+     */
+    public static boolean isSetCookieOf(final String header, final String name) {
+        return setsCookieAt(header, 0, name);
+    }
+
+    /**
+     * Returns true if the value of the Set-Cookie header, which may contain several cookies merged with commas or
+     * double semicolons as some frameworks do, sets the cookie with the specified name. Only the starts of
+     * the cookies are checked, nothing is allocated.
+     * @param header - value of the Set-Cookie header.
+     * @param name - cookie name.
+     * @return - true if the header sets the cookie.
+     */
+    public static boolean containsSetCookieOf(final String header, final String name) {
+        if(setsCookieAt(header, 0, name))
+            return true;
+        for(int i = 0; i < header.length(); i++) {
+            final char c = header.charAt(i);
+            if(c == ',' && setsCookieAt(header, i + 1, name))
+                return true;
+            if(c == ';' && i + 1 < header.length() && header.charAt(i + 1) == ';' && setsCookieAt(header, ++i + 1, name))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean setsCookieAt(final String header, int i, final String name) {
+        while(i < header.length() && isWhitespace(header.charAt(i)))
+            i++;
+        if(!header.regionMatches(i, name, 0, name.length()))
+            return false;
+        i += name.length();
+        while(i < header.length() && isWhitespace(header.charAt(i)))
+            i++;
+        return i < header.length() && header.charAt(i) == '=';
+    }
+
+    /**
+     * Builds the attributes part of the Set-Cookie header, starting with the separator, for the HTTP only cookie with
+     * the specified attributes.
+     * @param domain - cookie domain or null.
+     * @param path - cookie path or null.
+     * @param secure - is the cookie secure.
+     * @return - attributes part of the Set-Cookie header.
+     */
+    public static String setCookieAttributes(final String domain, final String path, final boolean secure) {
+        final StringBuilder builder = new StringBuilder(64);
+        if(domain != null)
+            builder.append("; Domain=").append(domain);
+        if(path != null)
+            builder.append("; Path=").append(path);
+        if(secure)
+            builder.append("; Secure");
+        builder.append("; HTTPOnly");
+        return builder.toString();
+    }
+
+}
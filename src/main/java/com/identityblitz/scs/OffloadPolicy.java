@@ -0,0 +1,71 @@
+package com.identityblitz.scs;
+
+/**
+ * The policy deciding whether an encoding or decoding of SCS is expensive enough to be run outside of the calling
+ * thread. The cost of an operation is estimated by the size of its input and the average cost of a byte measured on
+ * the operations of the same kind done so far, so the policy adapts to the keys, the compression and the hardware in
+ * use. The encodings and the decodings are estimated separately, as their costs per byte differ: an encoding takes
+ * the uncompressed state and may compress it, a decoding takes the Base64 encoded cookie.
+ * Until the first operation of a kind is measured all the operations of that kind are considered cheap.
+ */
+public class OffloadPolicy {
+
+    /**
+     * The kind of the SCS operation.
+     */
+    public enum Operation {
+        ENCODE,
+        DECODE
+    }
+
+    private final long thresholdInNanos;
+    private final int minSize;
+    /**
+     * Exponentially weighted moving averages of the cost of a byte in picoseconds. The updates are not atomic,
+     * a lost update only makes the estimation a bit less accurate.
+     */
+    private volatile long encodePicosPerByte;
+    private volatile long decodePicosPerByte;
+
+    /**
+     * Creates the policy.
+     * @param thresholdInNanos - estimated cost in nanoseconds above which the operation is considered expensive.
+     * @param minSize - size of input below which the operation is always considered cheap.
+     */
+    public OffloadPolicy(final long thresholdInNanos, final int minSize) {
+        this.thresholdInNanos = thresholdInNanos;
+        this.minSize = minSize;
+    }
+
+    /**
+     * Returns true if the operation with the input of the specified size is estimated as expensive.
+     * @param operation - kind of the operation.
+     * @param size - size of input (length of SCS for a decoding or of session state for an encoding).
+     * @return - true if the operation is expensive.
+     */
+    public boolean isExpensive(final Operation operation, final int size) {
+        final long picosPerByte = (operation == Operation.ENCODE)?encodePicosPerByte:decodePicosPerByte;
+        return size >= minSize && size * picosPerByte / 1000 > thresholdInNanos;
+    }
+
+    /**
+     * Records the measured cost of an operation.
+     * @param operation - kind of the operation.
+     * @param size - size of input.
+     * @param nanos - time the operation took in nanoseconds.
+     */
+    public void record(final Operation operation, final int size, final long nanos) {
+        if(size <= 0)
+            return;
+        final long sample = nanos * 1000 / size;
+        if(operation == Operation.ENCODE)
+            encodePicosPerByte = average(encodePicosPerByte, sample);
+        else
+            decodePicosPerByte = average(decodePicosPerByte, sample);
+    }
+
+    private static long average(final long current, final long sample) {
+        return (current == 0)?sample:current + (sample - current) / 8;
+    }
+
+}
@@ -0,0 +1,274 @@
+package com.identityblitz.scs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The pre-compiled set of rules matching HTTP requests by the method and the path. It is used to select the requests
+ * SCS is processed for, see {@link com.identityblitz.scs.SCSService#isExcluded(String, String, int)}.
+ * The rules are separated by commas, each rule is an optional list of HTTP methods separated by '|' followed by
+ * a space and a path pattern:
+ * <ul>
+ *     <li><b>/health</b> - the exact path;</li>
+ *     <li><b>/static/**</b> - all paths starting with the prefix before '**';</li>
+ *     <li><b>*.css</b> - all paths with the extension;</li>
+ *     <li><b>/api/*&#47;metrics</b> - the glob, where '*' matches any characters except '/', '**' matches any
+ *     characters and '?' matches any character except '/';</li>
+ *     <li><b>*</b> or <b>**</b> - all paths.</li>
+ * </ul>
+ * For instance <i>/static/**, *.ico, GET|HEAD /health</i>.
+ * The exact paths and the prefixes are kept in a trie, so matching a request walks its path once and doesn't allocate
+ * any objects.
+ */
+public final class RequestMatcher {
+    /**
+     * The matcher without rules, it doesn't match any request.
+     */
+    public static final RequestMatcher EMPTY = new RequestMatcher(new Node(), new String[0], new int[0],
+            new String[0], new int[0]);
+
+    private static final String[] METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH", "TRACE",
+            "CONNECT"};
+    private static final int OTHER_METHOD = 1 << METHODS.length;
+    private static final int ANY_METHOD = (OTHER_METHOD << 1) - 1;
+
+    private final Node trie;
+    private final String[] extensions;
+    private final int[] extensionMethods;
+    private final String[] globs;
+    private final int[] globMethods;
+    private final boolean empty;
+
+    private RequestMatcher(final Node trie, final String[] extensions, final int[] extensionMethods,
+                           final String[] globs, final int[] globMethods) {
+        this.trie = trie;
+        this.extensions = extensions;
+        this.extensionMethods = extensionMethods;
+        this.globs = globs;
+        this.globMethods = globMethods;
+        this.empty = trie.prefixMethods == 0 && trie.size == 0 && extensions.length == 0 && globs.length == 0;
+    }
+
+    /**
+     * Compiles the passed rules.
+     * @param rules - rules separated by commas, may be null.
+     * @return - matcher.
+     * @throws IllegalArgumentException - if a rule is malformed.
+     */
+    public static RequestMatcher compile(final String rules) {
+        if(rules == null || rules.trim().length() == 0)
+            return EMPTY;
+        final Node trie = new Node();
+        final List<String> extensions = new ArrayList<String>();
+        final List<Integer> extensionMethods = new ArrayList<Integer>();
+        final List<String> globs = new ArrayList<String>();
+        final List<Integer> globMethods = new ArrayList<Integer>();
+        for(String rule : rules.split(",")) {
+            rule = rule.trim();
+            if(rule.length() == 0)
+                continue;
+            final int space = rule.indexOf(' ');
+            final int methods = (space < 0)?ANY_METHOD:parseMethods(rule.substring(0, space));
+            final String pattern = (space < 0)?rule:rule.substring(space + 1).trim();
+            if(pattern.length() == 0)
+                throw new IllegalArgumentException("path pattern is missing: " + rule);
+            final int wildcard = indexOfWildcard(pattern, 0);
+            if("*".equals(pattern) || "**".equals(pattern)) {
+                trie.prefixMethods |= methods;
+            }
+            else if(wildcard < 0) {
+                if(pattern.charAt(0) != '/')
+                    throw new IllegalArgumentException("path pattern must start with '/': " + rule);
+                trie.add(pattern).exactMethods |= methods;
+            }
+            else if(pattern.startsWith("*.") && indexOfWildcard(pattern, 1) < 0 && pattern.indexOf('/') < 0) {
+                extensions.add(pattern.substring(1));
+                extensionMethods.add(methods);
+            }
+            else if(wildcard == pattern.length() - 2 && pattern.endsWith("**")) {
+                trie.add(pattern.substring(0, wildcard)).prefixMethods |= methods;
+            }
+            else {
+                globs.add(pattern);
+                globMethods.add(methods);
+            }
+        }
+        return new RequestMatcher(trie, extensions.toArray(new String[extensions.size()]), toArray(extensionMethods),
+                globs.toArray(new String[globs.size()]), toArray(globMethods));
+    }
+
+    /**
+     * Returns true if the matcher has no rules.
+     * @return - true if the matcher has no rules.
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Checks whether the request matches any of the rules.
+     * @param method - HTTP method of the request.
+     * @param uri - request URI, the query and the fragment are ignored.
+     * @param offset - offset of the path to match in the URI, for instance the length of the context path.
+     * @return - true if the request matches.
+     */
+    public boolean matches(final String method, final String uri, final int offset) {
+        if(empty)
+            return false;
+        final int methodBit = methodBit(method);
+        int end = offset;
+        while(end < uri.length() && uri.charAt(end) != '?' && uri.charAt(end) != '#')
+            end++;
+
+        Node node = trie;
+        for(int i = offset; node != null; i++) {
+            if((node.prefixMethods & methodBit) != 0)
+                return true;
+            if(i == end)
+                return (node.exactMethods & methodBit) != 0 || matchesPatterns(methodBit, uri, offset, end);
+            node = node.next(uri.charAt(i));
+        }
+        return matchesPatterns(methodBit, uri, offset, end);
+    }
+
+    private boolean matchesPatterns(final int methodBit, final String uri, final int offset, final int end) {
+        if(extensions.length > 0) {
+            int dot = end - 1;
+            while(dot >= offset && uri.charAt(dot) != '.' && uri.charAt(dot) != '/')
+                dot--;
+            if(dot >= offset && uri.charAt(dot) == '.') {
+                for(int i = 0; i < extensions.length; i++) {
+                    if((extensionMethods[i] & methodBit) != 0 && extensions[i].length() == end - dot
+                            && uri.regionMatches(true, dot, extensions[i], 0, end - dot))
+                        return true;
+                }
+            }
+        }
+        for(int i = 0; i < globs.length; i++) {
+            if((globMethods[i] & methodBit) != 0 && glob(globs[i], 0, uri, offset, end))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean glob(final String pattern, int p, final String path, int s, final int end) {
+        while(p < pattern.length()) {
+            final char c = pattern.charAt(p);
+            if(c == '*') {
+                final boolean any = p + 1 < pattern.length() && pattern.charAt(p + 1) == '*';
+                p += any?2:1;
+                if(p == pattern.length()) {
+                    if(any)
+                        return true;
+                    while(s < end && path.charAt(s) != '/')
+                        s++;
+                    return s == end;
+                }
+                // '/**/' also matches a single '/'
+                if(any && pattern.charAt(p) == '/' && glob(pattern, p + 1, path, s, end))
+                    return true;
+                for(; s <= end; s++) {
+                    if(glob(pattern, p, path, s, end))
+                        return true;
+                    if(s < end && !any && path.charAt(s) == '/')
+                        return false;
+                }
+                return false;
+            }
+            if(s == end || (c == '?'?path.charAt(s) == '/':path.charAt(s) != c))
+                return false;
+            p++;
+            s++;
+        }
+        return s == end;
+    }
+
+    private static int methodBit(final String method) {
+        for(int i = 0; i < METHODS.length; i++) {
+            if(METHODS[i].equals(method))
+                return 1 << i;
+        }
+        return OTHER_METHOD;
+    }
+
+    private static int parseMethods(final String methods) {
+        int mask = 0;
+        for(String method : methods.split("\\|")) {
+            mask |= methodBit(method.trim().toUpperCase());
+        }
+        return mask;
+    }
+
+    private static int indexOfWildcard(final String pattern, final int from) {
+        for(int i = from; i < pattern.length(); i++) {
+            final char c = pattern.charAt(i);
+            if(c == '*' || c == '?')
+                return i;
+        }
+        return -1;
+    }
+
+    private static int[] toArray(final List<Integer> list) {
+        final int[] array = new int[list.size()];
+        for(int i = 0; i < array.length; i++)
+            array[i] = list.get(i);
+        return array;
+    }
+
+    /**
+     * The trie node. The children are kept in the arrays sorted by the character.
+     */
+    private static final class Node {
+        private char[] chars = new char[0];
+        private Node[] children = new Node[0];
+        private int size;
+        private int prefixMethods;
+        private int exactMethods;
+
+        private Node next(final char c) {
+            int low = 0;
+            int high = size - 1;
+            while(low <= high) {
+                final int mid = (low + high) >>> 1;
+                if(chars[mid] < c)
+                    low = mid + 1;
+                else if(chars[mid] > c)
+                    high = mid - 1;
+                else
+                    return children[mid];
+            }
+            return null;
+        }
+
+        private Node add(final String path) {
+            Node node = this;
+            for(int i = 0; i < path.length(); i++) {
+                final char c = path.charAt(i);
+                Node child = node.next(c);
+                if(child == null) {
+                    child = new Node();
+                    node.insert(c, child);
+                }
+                node = child;
+            }
+            return node;
+        }
+
+        private void insert(final char c, final Node child) {
+            int pos = 0;
+            while(pos < size && chars[pos] < c)
+                pos++;
+            final char[] newChars = new char[size + 1];
+            final Node[] newChildren = new Node[size + 1];
+            System.arraycopy(chars, 0, newChars, 0, pos);
+            System.arraycopy(children, 0, newChildren, 0, pos);
+            newChars[pos] = c;
+            newChildren[pos] = child;
+            System.arraycopy(chars, pos, newChars, pos + 1, size - pos);
+            System.arraycopy(children, pos, newChildren, pos + 1, size - pos);
+            chars = newChars;
+            children = newChildren;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.identityblitz.scs;
+
+import com.identityblitz.scs.error.SCSException;
+
+/**
+ * The callback receiving the result of an asynchronous SCS operation, see
+ * {@link com.identityblitz.scs.SCSService#encodeAsync(String, SCSCallback)} and
+ * {@link com.identityblitz.scs.SCSService#decodeAsync(String, SCSCallback)}. Exactly one of the methods is called,
+ * either on the thread running the operation or on the calling thread if the operation is run inline or rejected.
+ * @param <T> - type of the result.
+ */
+public interface SCSCallback<T> {
+
+    /**
+     * Called when the operation succeeded.
+     * @param result - result of the operation.
+     */
+    void onSuccess(T result);
+
+    /**
+     * Called when the operation failed. The failures are typed the same way as the ones of the synchronous
+     * operations, an overloaded executor is reported with {@link com.identityblitz.scs.error.SCSRejectedException}.
+     * @param e - failure.
+     */
+    void onFailure(SCSException e);
+}
@@ -0,0 +1,85 @@
+package com.identityblitz.scs;
+
+/**
+ * The platform neutral access to the session state of the request being processed. The glues bind the context of
+ * the request to the thread calling the application code, so the application reads and changes the session state
+ * with {@link #current()} without passing the platform request around:
+ * <pre>
+ *     final SCSContext scs = SCSContext.current();
+ *     scs.changeSCS(scs.getSCS() + ";visited");
+ * </pre>
+ * The type of the request is resolved once when the context is created (see
+ * {@link com.identityblitz.scs.SCSService#contextOf(Object)}), not on every access.
+ * The context is bound only while the glue calls the application code on the thread, the work handed over to other
+ * threads has to carry it explicitly with {@link #wrap(Runnable)}. It is not inherited by the threads started
+ * during the request, as the pooled threads would keep the context of the request they were started by.
+ */
+public abstract class SCSContext {
+    private static final ThreadLocal<SCSContext> CURRENT = new ThreadLocal<SCSContext>();
+
+    /**
+     * Returns the context bound to the current thread.
+     * @return - context of the request being processed or null if there is no such request.
+     */
+    public static SCSContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Binds the passed context to the current thread. Must be followed by {@link #restore(SCSContext)} with
+     * the returned context when the request processing on the thread is finished.
+     * @param context - context to bind.
+     * @return - previously bound context or null.
+     */
+    public static SCSContext bind(final SCSContext context) {
+        final SCSContext previous = CURRENT.get();
+        CURRENT.set(context);
+        return previous;
+    }
+
+    /**
+     * Restores the context bound to the current thread before {@link #bind(SCSContext)}.
+     * @param previous - context returned by {@link #bind(SCSContext)}.
+     */
+    public static void restore(final SCSContext previous) {
+        if(previous == null) {
+            CURRENT.remove();
+        }
+        else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Returns the current session state of the request.
+     * @return - current session state or null if there is no session.
+     */
+    public abstract String getSCS();
+
+    /**
+     * Changes the current session state of the request.
+     * @param session - new session state.
+     * @throws IllegalStateException - if the session state can't be changed, for instance in the verify-only mode.
+     */
+    public abstract void changeSCS(String session);
+
+    /**
+     * Returns the task running the passed one with this context bound, so the session state of the request can be
+     * accessed from another thread.
+     * @param task - task.
+     * @return - wrapping task.
+     */
+    public Runnable wrap(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                final SCSContext previous = bind(SCSContext.this);
+                try {
+                    task.run();
+                } finally {
+                    restore(previous);
+                }
+            }
+        };
+    }
+}
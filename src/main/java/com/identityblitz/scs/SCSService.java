@@ -1,19 +1,32 @@
 package com.identityblitz.scs;
 
 import com.identityblitz.scs.error.SCSException;
-import com.identityblitz.scs.glue.netty.http.SCSFullHttpRequest;
+import com.identityblitz.scs.glue.BasicCryptoService;
+import com.identityblitz.scs.glue.httpserver.SCSHttpExchange;
+import com.identityblitz.scs.glue.netty.http.SCSHttpRequest;
+import com.identityblitz.scs.glue.play.SCSRequestStates;
+import com.identityblitz.scs.glue.undertow.SCSHandler;
 import com.identityblitz.scs.service.ServiceProvider;
+import com.identityblitz.scs.service.spi.ConfigurationService;
 import com.identityblitz.scs.service.spi.CryptoTransformationService;
+import io.undertow.server.HttpServerExchange;
+import org.apache.commons.codec.DecoderException;
 import play.mvc.Http;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.identityblitz.scs.LoggingUtils.getLogger;
+import static org.apache.commons.codec.binary.StringUtils.getBytesUtf8;
 
 /**
  * The service provides operations to work with SCS. The basic operations to encode and decode SCS.
@@ -31,56 +44,210 @@ import static com.identityblitz.scs.LoggingUtils.getLogger;
  *         <tr><td>com.blitz.scs.cookieDomain</td><td>SCS cookie domain.</td><td></td></tr>
  *         <tr><td>com.blitz.scs.cookiePath</td><td>SCS cookie path.</td><td>/</td></tr>
  *         <tr><td>com.blitz.scs.cookieIsSecure</td><td>To transfer a SCS cookie only over SSL.</td><td>false</td></tr>
+ *         <tr><td>com.identityblitz.scs.include</td><td>Rules of the requests SCS is processed for, see
+ *         {@link com.identityblitz.scs.RequestMatcher}.</td><td>all requests</td></tr>
+ *         <tr><td>com.identityblitz.scs.exclude</td><td>Rules of the requests SCS is not processed for.</td>
+ *         <td></td></tr>
+ *         <tr><td>com.identityblitz.scs.verifyOnly</td><td>To only verify and read SCS, never encode it or set
+ *         the cookie, see {@link #isVerifyOnly()}.</td><td>false</td></tr>
  *     </tbody>
  * </table>
  */
 public final class SCSService {
-    private static final String SCS_COOKIE_NAME = ServiceProvider.INSTANCE.getConfiguration()
-            .getString(ConfigParameter.SCS_COOKIE_NAME.key(), "SCS");
-    private static final String DOMAIN = ServiceProvider.INSTANCE.getConfiguration()
-            .getString(ConfigParameter.DOMAIN.key());
-    private static final boolean IS_SECURE = ServiceProvider.INSTANCE.getConfiguration()
-            .getBoolean(ConfigParameter.IS_SECURE.key(), false);
-    private static final String PATH = ServiceProvider.INSTANCE.getConfiguration()
-            .getString(ConfigParameter.PATH.key(), "/");
-
+    private static final String SCS_ATTRIBUTE_NAME = "com.identityblitz.scs.requestAttribute";
     /**
-     * This configuration parameter specifies the platform the SCS library is built into. The available values:
-     *  - SERVLET;
-     *  - NETTY-HTTP;
-     *  - PLAY.
+     * Name of the request attribute marking the requests processed in the verify-only mode.
      */
-    private static final Platform PLATFORM = Platform.safeValueOf(ServiceProvider.INSTANCE.getConfiguration()
-            .getString(ConfigParameter.PLATFORM.key()));
-
-    private static final String SCS_ATTRIBUTE_NAME = "com.identityblitz.scs.requestAttribute";
-    private static final Set<Platform> available = checkAvailable();
+    public static final String VERIFY_ONLY_ATTRIBUTE_NAME = "com.identityblitz.scs.verifyOnly";
+
+    private final String cookieName;
+    private final String domain;
+    private final boolean secure;
+    private final String path;
+    private final CryptoTransformationService cryptoService;
+    private final Clock clock;
+    private final RequestMatcher includes;
+    private final RequestMatcher excludes;
+    private final String setCookieSuffix;
+    private final byte[] setCookiePrefixBytes;
+    private final byte[] setCookieSuffixBytes;
+    private final AsyncCrypto asyncCrypto;
+    private final boolean verifyOnly;
+    private final Bulkhead bulkhead;
 
     private boolean useCompression;
     private Long sSessionMaxAge;
-    private CryptoTransformationService cryptoService;
 
     public SCSService() {
-        this.useCompression = false;
-        getLogger().debug("SCS cookie compression is set to false.");
-        cryptoService = ServiceProvider.INSTANCE.getCryptoService();
+        this(ServiceProvider.INSTANCE.getConfiguration(), ServiceProvider.INSTANCE.getCryptoService());
+    }
+
+    private SCSService(final ConfigurationService configuration, final CryptoTransformationService cryptoService) {
+        this(configuration.getString(ConfigParameter.SCS_COOKIE_NAME.key(), "SCS"),
+                configuration.getString(ConfigParameter.DOMAIN.key()),
+                configuration.getBoolean(ConfigParameter.IS_SECURE.key(), false),
+                configuration.getString(ConfigParameter.PATH.key(), "/"),
+                false, null, cryptoService, Clock.SYSTEM,
+                RequestMatcher.compile(configuration.getString(ConfigParameter.INCLUDE.key())),
+                RequestMatcher.compile(configuration.getString(ConfigParameter.EXCLUDE.key())), null, null,
+                configuration.getBoolean(ConfigParameter.VERIFY_ONLY.key(), false),
+                Bulkhead.fromConfiguration(configuration));
+    }
+
+    private SCSService(final String cookieName, final String domain, final boolean secure, final String path,
+                       final boolean useCompression, final Long sSessionMaxAge,
+                       final CryptoTransformationService cryptoService, final Clock clock,
+                       final RequestMatcher includes, final RequestMatcher excludes,
+                       final Executor asyncExecutor, final OffloadPolicy asyncPolicy, final boolean verifyOnly,
+                       final Bulkhead bulkhead) {
+        this.cookieName = cookieName;
+        this.domain = domain;
+        this.secure = secure;
+        this.path = path;
+        this.useCompression = useCompression;
+        getLogger().debug("SCS cookie compression is set to {}.", this.useCompression);
+        this.sSessionMaxAge = sSessionMaxAge;
+        this.cryptoService = cryptoService;
+        this.clock = clock;
+        this.includes = includes;
+        this.excludes = excludes;
+        this.setCookieSuffix = CookieUtils.setCookieAttributes(domain, path, secure);
+        this.setCookiePrefixBytes = getBytesUtf8(cookieName + "=");
+        this.setCookieSuffixBytes = getBytesUtf8(setCookieSuffix);
+        this.asyncCrypto = new AsyncCrypto(asyncExecutor, asyncPolicy);
+        this.verifyOnly = verifyOnly;
+        this.bulkhead = bulkhead;
     }
 
     public void init(final boolean useCompression, final Long sSessionMaxAge) {
         this.useCompression = useCompression;
         getLogger().debug("SCS cookie compression is set to {}.", this.useCompression);
         this.sSessionMaxAge = sSessionMaxAge;
-        getLogger().debug("SCS session max age is set to {}.", this.useCompression);
+        getLogger().debug("SCS session max age is set to {}.", this.sSessionMaxAge);
+    }
+
+    /**
+     * Returns a new builder to assemble a fully configured service explicitly, without a need of
+     * {@link java.util.ServiceLoader} discovery.
+     * @return - builder.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns the service configured by the services discovered by {@link com.identityblitz.scs.service.ServiceProvider}.
+     * The service is created on the first call. It is used by the glues which have not got an explicitly passed service.
+     * @return - default service.
+     */
+    public static SCSService getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    public String getCookieName() {
+        return cookieName;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public boolean isSecure() {
+        return secure;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isUseCompression() {
+        return useCompression;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Returns true if the service is in the verify-only mode. In this mode SCS is decoded and verified but never
+     * encoded, the glues don't set the SCS cookie and refuse to change the session state with
+     * {@link java.lang.IllegalStateException}. It suits the services which only read the session issued by others.
+     * @return - true if the service is in the verify-only mode.
+     */
+    public boolean isVerifyOnly() {
+        return verifyOnly;
+    }
+
+    /**
+     * Returns the bulkhead bounding the number of the decoding operations run at once.
+     * @return - bulkhead or null if the operations are not bounded.
+     */
+    public Bulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    /**
+     * Returns true if the glues should process the request which SCS decoding is shed by the bulkhead as if it had
+     * no SCS cookie, see {@link com.identityblitz.scs.Bulkhead.Fallback#ABSENT}.
+     * @return - true if the shed SCS is treated as absent.
+     */
+    public boolean isShedAsAbsent() {
+        return bulkhead != null && bulkhead.getFallback() == Bulkhead.Fallback.ABSENT;
+    }
+
+    /**
+     * Checks whether SCS should not be processed for the request, so neither the cookie is decoded nor the Set-Cookie
+     * header is added. The request is excluded if the include rules are configured and it doesn't match them or if it
+     * matches the exclude rules. The check doesn't allocate any objects.
+     * @param method - HTTP method of the request.
+     * @param uri - request URI, the query is ignored.
+     * @param offset - offset of the path to check in the URI, for instance the length of the context path.
+     * @return - true if SCS should not be processed for the request.
+     */
+    public boolean isExcluded(final String method, final String uri, final int offset) {
+        return (!includes.isEmpty() && !includes.matches(method, uri, offset)) || excludes.matches(method, uri, offset);
+    }
+
+    /**
+     * Returns the value of the Set-Cookie header setting the SCS cookie with the passed value and the cookie
+     * attributes of this service. The attributes part is built once when the service is created.
+     * @param value - SCS cookie value.
+     * @return - Set-Cookie header value.
+     */
+    public String toSetCookieHeader(final String value) {
+        return new StringBuilder(cookieName.length() + value.length() + setCookieSuffix.length() + 1)
+                .append(cookieName).append('=').append(value).append(setCookieSuffix).toString();
+    }
+
+    /**
+     * Returns the value of the Set-Cookie header setting the SCS cookie with the passed SCS and the cookie
+     * attributes of this service. The value is written directly into one byte array, the fields of SCS are not
+     * turned into intermediate strings.
+     * @param session - SCS.
+     * @return - Set-Cookie header value.
+     * @throws SCSException - if an error occurred while encoding the SCS.
+     */
+    public CharSequence toSetCookieHeader(final SCSession session) throws SCSException {
+        if(!(session instanceof SCSessionImpl))
+            return toSetCookieHeader(session.asString());
+        final SCSessionImpl scs = (SCSessionImpl)session;
+        final byte[] bytes = new byte[setCookiePrefixBytes.length + scs.encodedLength() + setCookieSuffixBytes.length];
+        System.arraycopy(setCookiePrefixBytes, 0, bytes, 0, setCookiePrefixBytes.length);
+        final int offset = scs.encodeTo(bytes, setCookiePrefixBytes.length);
+        System.arraycopy(setCookieSuffixBytes, 0, bytes, offset, setCookieSuffixBytes.length);
+        return new AsciiCharSequence(bytes);
     }
 
     /**
      * Encodes SCS containing the specified session information and returns it.
      * @param session - session information.
      * @return - SCS.
-     * @throws SCSException - if any errors occurred while encoding.
+     * @throws SCSException - if any errors occurred while encoding or the service is in the verify-only mode.
      */
     public SCSession encode(final String session) throws SCSException {
-        return new SCSessionImpl(session, useCompression, cryptoService);
+        if(verifyOnly)
+            throw new SCSException("SCS can't be encoded in the verify-only mode");
+        return new SCSessionImpl(session, new Date(clock.currentTimeMillis()), useCompression, cryptoService);
     }
 
     /**
@@ -90,10 +257,91 @@ public final class SCSService {
      * @return - SCS
      * @throws com.identityblitz.scs.error.SCSExpiredException - if SCS is expired.
      * @throws com.identityblitz.scs.error.SCSBrokenException - if SCS is broken.
-     * @throws SCSException - if any other error which doesn't fall into previous two ones.
+     * @throws com.identityblitz.scs.error.SCSRejectedException - if the operation is shed by the bulkhead.
+     * @throws SCSException - if any other error which doesn't fall into previous three ones.
      */
     public SCSession decode(final String scs) throws SCSException {
-        return new SCSessionImpl(useCompression, cryptoService, scs, sSessionMaxAge);
+        return decode(scs, true);
+    }
+
+    /**
+     * Decodes SCS like {@link #decode(String)}, but if the bulkhead has no free permit the operation is shed at once
+     * instead of waiting in the queue of the bulkhead. Used by the glues decoding on the I/O threads of
+     * the non-blocking servers, which must never wait.
+     * @param scs - string representation of SCS.
+     * @return - SCS
+     * @throws SCSException - the same as {@link #decode(String)}.
+     */
+    public SCSession decodeWithoutWaiting(final String scs) throws SCSException {
+        return decode(scs, false);
+    }
+
+    private SCSession decode(final String scs, final boolean mayWait) throws SCSException {
+        if(bulkhead == null)
+            return new SCSessionImpl(useCompression, cryptoService, scs, sSessionMaxAge, clock);
+        bulkhead.acquire(mayWait);
+        try {
+            return new SCSessionImpl(useCompression, cryptoService, scs, sSessionMaxAge, clock);
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Encodes SCS containing the specified session information without blocking the calling thread on expensive
+     * operations. The operation is run inline if it is estimated as cheap, otherwise on the executor set with
+     * {@link Builder#asyncExecutor(java.util.concurrent.Executor, OffloadPolicy)}. The failures are the same as
+     * the ones of {@link #encode(String)}, and if the executor is overloaded the operation fails at once with
+     * {@link com.identityblitz.scs.error.SCSRejectedException}.
+     * @param session - session information.
+     * @param callback - callback receiving the result, may be null.
+     * @return - future of the SCS, its failures are reported as {@link java.util.concurrent.ExecutionException}
+     * caused by the SCS exception.
+     */
+    public Future<SCSession> encodeAsync(final String session, final SCSCallback<SCSession> callback) {
+        return asyncCrypto.submit(OffloadPolicy.Operation.ENCODE, session.length(), new Callable<SCSession>() {
+            @Override
+            public SCSession call() throws SCSException {
+                return encode(session);
+            }
+        }, callback);
+    }
+
+    /**
+     * Decodes the specified string representation of SCS without blocking the calling thread on expensive
+     * operations, see {@link #encodeAsync(String, SCSCallback)}. The failures are the same as the ones of
+     * {@link #decode(String)} plus {@link com.identityblitz.scs.error.SCSRejectedException}.
+     * @param scs - string representation of SCS.
+     * @param callback - callback receiving the result, may be null.
+     * @return - future of the SCS.
+     */
+    public Future<SCSession> decodeAsync(final String scs, final SCSCallback<SCSession> callback) {
+        return asyncCrypto.submit(OffloadPolicy.Operation.DECODE, scs.length(), new Callable<SCSession>() {
+            @Override
+            public SCSession call() throws SCSException {
+                return decode(scs);
+            }
+        }, callback);
+    }
+
+    /**
+     * Returns the time the passed SCS expires at according to the session max age of this service.
+     * @param session - SCS.
+     * @return - expiry time in milliseconds since the epoch.
+     */
+    public long getExpiryTime(final SCSession session) {
+        return session.getAtime().getTime() + SCSessionImpl.getMaxAge(sSessionMaxAge) * 1000;
+    }
+
+    /**
+     * Checks whether the passed SCS is recent enough to be kept by the client as is if the session state doesn't
+     * change. It is so while less than half of the session max age has passed since the access time of the SCS, so
+     * the unchanged sessions are still re-issued regularly and don't expire while in use.
+     * @param session - SCS.
+     * @return - true if the SCS doesn't need to be re-issued.
+     */
+    public boolean isFresh(final SCSession session) {
+        return clock.currentTimeMillis() - session.getAtime().getTime() < SCSessionImpl.getMaxAge(sSessionMaxAge) * 500;
     }
 
     /**
@@ -108,7 +356,7 @@ public final class SCSService {
      * @throws SCSException - if any other error which doesn't fall into previous two ones.
      */
     public SCSession extractFromUpstream(final HttpServletRequest request) throws SCSException {
-        final Cookie scsCookie = findCookie(request, SCS_COOKIE_NAME);
+        final Cookie scsCookie = findCookie(request, cookieName);
         if(scsCookie == null) {
             getLogger().debug("SCS cookie is absent in the request.");
             return null;
@@ -129,13 +377,17 @@ public final class SCSService {
      * @return - current session state.
      */
     public static String getSCS(final Object req) {
-        switch ((PLATFORM != null)?PLATFORM:determinePlatform(req)) {
+        switch ((PlatformHolder.PLATFORM != null)?PlatformHolder.PLATFORM:determinePlatform(req)) {
             case SERVLET:
                 return getServletSCS((HttpServletRequest)req);
             case NETTY_HTTP:
-                return getNettySCS((SCSFullHttpRequest)req);
+                return getNettySCS((SCSHttpRequest)req);
             case PLAY:
                 return getPlaySCS((Http.Context)req);
+            case JDK_HTTP:
+                return ((SCSHttpExchange)req).getSCS();
+            case UNDERTOW:
+                return SCSHandler.getSCS((HttpServerExchange)req);
             default:
                 throw new IllegalArgumentException("wrong request type");
         }
@@ -147,16 +399,90 @@ public final class SCSService {
      * @param newSessionState - new session state.
      */
     public static void changeSCS(final Object req, final String newSessionState) {
-        switch ((PLATFORM != null)?PLATFORM:determinePlatform(req)) {
+        switch ((PlatformHolder.PLATFORM != null)?PlatformHolder.PLATFORM:determinePlatform(req)) {
             case SERVLET:
                 changeServletSCS((HttpServletRequest) req, newSessionState);
                 break;
             case NETTY_HTTP:
-                changeNettySCS((SCSFullHttpRequest)req, newSessionState);
+                changeNettySCS((SCSHttpRequest)req, newSessionState);
                 break;
             case PLAY:
                 changePlaySCS((Http.Context)req, newSessionState);
                 break;
+            case JDK_HTTP:
+                ((SCSHttpExchange)req).changeSCS(newSessionState);
+                break;
+            case UNDERTOW:
+                SCSHandler.changeSCS((HttpServerExchange)req, newSessionState);
+                break;
+            default:
+                throw new IllegalArgumentException("wrong request type");
+        }
+    }
+
+    /**
+     * Returns the platform neutral context of the passed request, see {@link com.identityblitz.scs.SCSContext}.
+     * The platform of the request is resolved once here, the context accesses the session state of the request
+     * directly.
+     * @param req - request.
+     * @return - context of the request.
+     */
+    public static SCSContext contextOf(final Object req) {
+        switch ((PlatformHolder.PLATFORM != null)?PlatformHolder.PLATFORM:determinePlatform(req)) {
+            case SERVLET:
+                final HttpServletRequest request = (HttpServletRequest)req;
+                return new SCSContext() {
+                    @Override
+                    public String getSCS() {
+                        return getServletSCS(request);
+                    }
+
+                    @Override
+                    public void changeSCS(final String session) {
+                        changeServletSCS(request, session);
+                    }
+                };
+            case NETTY_HTTP:
+                final SCSHttpRequest nettyRequest = (SCSHttpRequest)req;
+                return new SCSContext() {
+                    @Override
+                    public String getSCS() {
+                        return nettyRequest.getSCS();
+                    }
+
+                    @Override
+                    public void changeSCS(final String session) {
+                        nettyRequest.changeSCS(session);
+                    }
+                };
+            case PLAY:
+                final Http.Context ctx = (Http.Context)req;
+                return new SCSContext() {
+                    @Override
+                    public String getSCS() {
+                        return getPlaySCS(ctx);
+                    }
+
+                    @Override
+                    public void changeSCS(final String session) {
+                        changePlaySCS(ctx, session);
+                    }
+                };
+            case JDK_HTTP:
+                final SCSHttpExchange exchange = (SCSHttpExchange)req;
+                return new SCSContext() {
+                    @Override
+                    public String getSCS() {
+                        return exchange.getSCS();
+                    }
+
+                    @Override
+                    public void changeSCS(final String session) {
+                        exchange.changeSCS(session);
+                    }
+                };
+            case UNDERTOW:
+                return SCSHandler.contextOf((HttpServerExchange)req);
             default:
                 throw new IllegalArgumentException("wrong request type");
         }
@@ -174,7 +500,7 @@ public final class SCSService {
         catch (NoClassDefFoundError e) {}
 
         try {
-            loader.loadClass("com.identityblitz.scs.glue.netty.http.SCSFullHttpRequest");
+            loader.loadClass("com.identityblitz.scs.glue.netty.http.SCSHttpRequest");
             res.add(Platform.NETTY_HTTP);
         }
         catch (ClassNotFoundException e) {}
@@ -187,18 +513,38 @@ public final class SCSService {
         catch (ClassNotFoundException e) {}
         catch (NoClassDefFoundError e) {}
 
+        try {
+            loader.loadClass("com.sun.net.httpserver.HttpExchange");
+            res.add(Platform.JDK_HTTP);
+        }
+        catch (ClassNotFoundException e) {}
+        catch (NoClassDefFoundError e) {}
+
+        try {
+            loader.loadClass("io.undertow.server.HttpServerExchange");
+            res.add(Platform.UNDERTOW);
+        }
+        catch (ClassNotFoundException e) {}
+        catch (NoClassDefFoundError e) {}
+
         return Collections.unmodifiableSet(res);
     }
 
     private static Platform determinePlatform(final Object req) {
-        if(available.contains(Platform.SERVLET) && req instanceof HttpServletRequest) {
+        if(PlatformHolder.available.contains(Platform.SERVLET) && req instanceof HttpServletRequest) {
             return Platform.SERVLET;
         }
-        else if(available.contains(Platform.NETTY_HTTP) && req instanceof SCSFullHttpRequest) {
+        else if(PlatformHolder.available.contains(Platform.NETTY_HTTP) && req instanceof SCSHttpRequest) {
             return Platform.NETTY_HTTP;
-        } if(available.contains(Platform.PLAY) && req instanceof Http.Context) {
+        } if(PlatformHolder.available.contains(Platform.PLAY) && req instanceof Http.Context) {
             return Platform.PLAY;
         }
+        else if(PlatformHolder.available.contains(Platform.JDK_HTTP) && req instanceof SCSHttpExchange) {
+            return Platform.JDK_HTTP;
+        }
+        else if(PlatformHolder.available.contains(Platform.UNDERTOW) && req instanceof HttpServerExchange) {
+            return Platform.UNDERTOW;
+        }
         else {
             throw new IllegalArgumentException("wrong request type");
         }
@@ -209,23 +555,30 @@ public final class SCSService {
     }
 
     private static void changeServletSCS(final HttpServletRequest request, final String newSessionState) {
+        if(request.getAttribute(VERIFY_ONLY_ATTRIBUTE_NAME) != null)
+            throw new IllegalStateException("SCS can't be changed in the verify-only mode");
         request.setAttribute(SCS_ATTRIBUTE_NAME, newSessionState);
     }
 
-    private static String getNettySCS(final SCSFullHttpRequest request) {
+    private static String getNettySCS(final SCSHttpRequest request) {
         return request.getSCS();
     }
 
-    private static void changeNettySCS(final SCSFullHttpRequest request, final String newSessionState) {
+    private static void changeNettySCS(final SCSHttpRequest request, final String newSessionState) {
         request.changeSCS(newSessionState);
     }
 
     private static String getPlaySCS(final Http.Context ctx) {
-        return (String)ctx.args.get(SCS_ATTRIBUTE_NAME);
+        final AtomicReference<String> filtered = SCSRequestStates.get(ctx.id());
+        return (filtered != null)?filtered.get():(String)ctx.args.get(SCS_ATTRIBUTE_NAME);
     }
 
     private static void changePlaySCS(final Http.Context ctx, final String newSessionState) {
-        ctx.args.put(SCS_ATTRIBUTE_NAME, newSessionState);
+        if(ctx.args.containsKey(VERIFY_ONLY_ATTRIBUTE_NAME))
+            throw new IllegalStateException("SCS can't be changed in the verify-only mode");
+        if(!SCSRequestStates.change(ctx.id(), newSessionState)) {
+            ctx.args.put(SCS_ATTRIBUTE_NAME, newSessionState);
+        }
     }
 
     /**
@@ -246,12 +599,12 @@ public final class SCSService {
         }
         else {
             getLogger().debug("there is no session state to store in SCS cookie.");
-            final Cookie expiredCookie = new Cookie(SCS_COOKIE_NAME, null);
+            final Cookie expiredCookie = new Cookie(cookieName, null);
             expiredCookie.setMaxAge(0);
-            expiredCookie.setDomain(DOMAIN);
-            expiredCookie.setSecure(IS_SECURE);
+            expiredCookie.setDomain(domain);
+            expiredCookie.setSecure(secure);
             expiredCookie.setHttpOnly(true);
-            expiredCookie.setPath(PATH);
+            expiredCookie.setPath(path);
             response.addCookie(expiredCookie);
             return null;
         }
@@ -268,12 +621,12 @@ public final class SCSService {
         return null;
     }
 
-    private static Cookie createSCSCookie(final SCSession scs) throws SCSException {
-        final Cookie scsCookie = new Cookie(SCS_COOKIE_NAME, scs.asString());
-        scsCookie.setDomain(DOMAIN);
-        scsCookie.setSecure(IS_SECURE);
+    private Cookie createSCSCookie(final SCSession scs) throws SCSException {
+        final Cookie scsCookie = new Cookie(cookieName, scs.asString());
+        scsCookie.setDomain(domain);
+        scsCookie.setSecure(secure);
         scsCookie.setHttpOnly(true);
-        scsCookie.setPath(PATH);
+        scsCookie.setPath(path);
         getLogger().debug("SCS cookie [name = {}, value = {}, domain = {}, " +
                 "secure = {}, httpOnly = {}, path = {}] has been created.",
                 new Object[]{scsCookie.getName(), scsCookie.getValue(), scsCookie.getDomain(),
@@ -281,12 +634,216 @@ public final class SCSService {
         return scsCookie;
     }
 
+    /**
+     * The builder to assemble {@link com.identityblitz.scs.SCSService} explicitly. All the parameters which are not
+     * set explicitly are read from the configuration passed to {@link Builder#configuration(ConfigurationService)}.
+     * If neither the parameter nor the configuration is set the configuration discovered by
+     * {@link com.identityblitz.scs.service.ServiceProvider} is used. If the cryptographic service is not set,
+     * {@link com.identityblitz.scs.glue.BasicCryptoService} reading its keys from the passed configuration is used,
+     * or if the configuration is not passed too, the discovered cryptographic service.
+     */
+    public static final class Builder {
+        private ConfigurationService configuration;
+        private CryptoTransformationService cryptoService;
+        private Clock clock;
+        private String cookieName;
+        private String domain;
+        private Boolean secure;
+        private String path;
+        private Boolean useCompression;
+        private Long sessionMaxAge;
+        private String includes;
+        private String excludes;
+        private Executor asyncExecutor;
+        private OffloadPolicy asyncPolicy;
+        private Boolean verifyOnly;
+        private Bulkhead bulkhead;
+        private boolean bulkheadSet;
+
+        private Builder() {}
+
+        public Builder configuration(final ConfigurationService configuration) {
+            this.configuration = configuration;
+            return this;
+        }
+
+        public Builder cryptoService(final CryptoTransformationService cryptoService) {
+            this.cryptoService = cryptoService;
+            return this;
+        }
+
+        public Builder clock(final Clock clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        public Builder cookieName(final String cookieName) {
+            this.cookieName = cookieName;
+            return this;
+        }
+
+        public Builder domain(final String domain) {
+            this.domain = domain;
+            return this;
+        }
+
+        public Builder secure(final boolean secure) {
+            this.secure = secure;
+            return this;
+        }
+
+        public Builder path(final String path) {
+            this.path = path;
+            return this;
+        }
+
+        public Builder useCompression(final boolean useCompression) {
+            this.useCompression = useCompression;
+            return this;
+        }
+
+        /**
+         * Sets the session max age.
+         * @param sessionMaxAge - max age in seconds.
+         * @return - this builder.
+         */
+        public Builder sessionMaxAge(final long sessionMaxAge) {
+            this.sessionMaxAge = sessionMaxAge;
+            return this;
+        }
+
+        /**
+         * Sets the rules of the requests SCS is processed for, see {@link com.identityblitz.scs.RequestMatcher}.
+         * @param rules - rules separated by commas.
+         * @return - this builder.
+         */
+        public Builder include(final String rules) {
+            this.includes = rules;
+            return this;
+        }
+
+        /**
+         * Sets the rules of the requests SCS is not processed for, see {@link com.identityblitz.scs.RequestMatcher}.
+         * @param rules - rules separated by commas.
+         * @return - this builder.
+         */
+        public Builder exclude(final String rules) {
+            this.excludes = rules;
+            return this;
+        }
+
+        /**
+         * Sets the executor running the expensive asynchronous operations, see
+         * {@link SCSService#encodeAsync(String, SCSCallback)}. The executor should be bounded and reject
+         * the operations when overloaded. If it is not set the shared executor having a thread per processor and
+         * a bounded queue is used.
+         * @param executor - executor, may be null.
+         * @param offloadPolicy - policy deciding which operations are run inline, may be null.
+         * @return - this builder.
+         */
+        public Builder asyncExecutor(final Executor executor, final OffloadPolicy offloadPolicy) {
+            this.asyncExecutor = executor;
+            this.asyncPolicy = offloadPolicy;
+            return this;
+        }
+
+        /**
+         * Sets the verify-only mode, see {@link SCSService#isVerifyOnly()}.
+         * @param verifyOnly - true to only verify and read SCS.
+         * @return - this builder.
+         */
+        public Builder verifyOnly(final boolean verifyOnly) {
+            this.verifyOnly = verifyOnly;
+            return this;
+        }
+
+        /**
+         * Sets the bulkhead bounding the number of the decoding operations run at once, see
+         * {@link com.identityblitz.scs.Bulkhead}. If it is not set, it is created from the configuration passed to
+         * {@link #configuration(ConfigurationService)} if <b>com.identityblitz.scs.bulkhead.maxConcurrent</b> is
+         * configured there. The bulkhead is never read from the discovered configuration.
+         * @param bulkhead - bulkhead or null to disable it even if it is configured.
+         * @return - this builder.
+         */
+        public Builder bulkhead(final Bulkhead bulkhead) {
+            this.bulkhead = bulkhead;
+            this.bulkheadSet = true;
+            return this;
+        }
+
+        public SCSService build() {
+            return new SCSService(
+                    (cookieName != null)?cookieName:config().getString(ConfigParameter.SCS_COOKIE_NAME.key(), "SCS"),
+                    (domain != null)?domain:config().getString(ConfigParameter.DOMAIN.key()),
+                    (secure != null)?secure:config().getBoolean(ConfigParameter.IS_SECURE.key(), false),
+                    (path != null)?path:config().getString(ConfigParameter.PATH.key(), "/"),
+                    (useCompression != null)?useCompression:
+                            config().getBoolean(ConfigParameter.USE_COMPRESSION.key(), false),
+                    (sessionMaxAge != null)?sessionMaxAge:
+                            config().getLong(ConfigParameter.SESSION_MAX_AGE.key(), 3600L),
+                    (cryptoService != null)?cryptoService:crypto(),
+                    (clock != null)?clock:Clock.SYSTEM,
+                    RequestMatcher.compile((includes != null)?includes:
+                            config().getString(ConfigParameter.INCLUDE.key())),
+                    RequestMatcher.compile((excludes != null)?excludes:
+                            config().getString(ConfigParameter.EXCLUDE.key())),
+                    asyncExecutor, asyncPolicy,
+                    (verifyOnly != null)?verifyOnly:config().getBoolean(ConfigParameter.VERIFY_ONLY.key(), false),
+                    (bulkheadSet || configuration == null)?bulkhead:Bulkhead.fromConfiguration(configuration));
+        }
+
+        private ConfigurationService config() {
+            return (configuration != null)?configuration:ServiceProvider.INSTANCE.getConfiguration();
+        }
+
+        private CryptoTransformationService crypto() {
+            if(configuration == null)
+                return ServiceProvider.INSTANCE.getCryptoService();
+            try {
+                return new BasicCryptoService(configuration);
+            } catch (DecoderException e) {
+                throw new IllegalArgumentException("wrong cryptographic key: " + e.getMessage());
+            }
+        }
+    }
+
+    private static final class DefaultHolder {
+        private static final SCSService INSTANCE = builder()
+                .configuration(ServiceProvider.INSTANCE.getConfiguration())
+                .cryptoService(ServiceProvider.INSTANCE.getCryptoService())
+                .build();
+    }
+
+    private static final class PlatformHolder {
+        /**
+         * This optional parameter specifies the platform the SCS library is built into. It is read from the system
+         * property or, if it is not set, from the discovered configuration if there is a configuration provider.
+         * The available values:
+         *  - SERVLET;
+         *  - NETTY-HTTP;
+         *  - PLAY;
+         *  - JDK_HTTP;
+         *  - UNDERTOW.
+         */
+        private static final Platform PLATFORM = Platform.safeValueOf(platformOverride());
+        private static final Set<Platform> available = checkAvailable();
+
+        private static String platformOverride() {
+            final String platform = System.getProperty(ConfigParameter.PLATFORM.key());
+            if(platform != null || !ServiceProvider.INSTANCE.hasConfiguration())
+                return platform;
+            return ServiceProvider.INSTANCE.getConfiguration().getString(ConfigParameter.PLATFORM.key());
+        }
+    }
+
 }
 
 enum Platform {
     SERVLET,
     NETTY_HTTP,
-    PLAY;
+    PLAY,
+    JDK_HTTP,
+    UNDERTOW;
 
     static Platform safeValueOf(final String name) {
         if(name == null)
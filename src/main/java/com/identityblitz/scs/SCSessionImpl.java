@@ -17,15 +17,17 @@ import static org.apache.commons.codec.binary.StringUtils.getBytesUtf8;
 final class SCSessionImpl implements SCSession {
     private static final char FIELD_SEPARATOR = '|';
     private static final String SERVICE_NAME = "com.identityblitz.scs.Service";
-    private static final long SESSION_MAX_AGE_IN_SEC =
-            ServiceProvider.INSTANCE.getConfiguration().getLong(ConfigParameter.SESSION_MAX_AGE.key(), 3600L);
-
     private final String data;
     private final byte[] encData;
     private final Date atime;
     private final String tid;
     private final byte[] iv;
     private final byte[] authTag;
+    /**
+     * The first four fields of SCS (DATA|ATIME|TID|IV) in the encoded form. It is the message the authentication
+     * tag is calculated on and also the prefix of the string representation of SCS.
+     */
+    private final String boxed;
 
     SCSessionImpl(final String data, final boolean compressed, final CryptoTransformationService crypto)
             throws SCSException {
@@ -43,38 +45,50 @@ final class SCSessionImpl implements SCSession {
             throw new SCSException(e.getMessage());
         }
         this.atime = atime;
-        this.authTag = crypto.createHmac(this.tid, box(
-                Base64.encodeBase64URLSafeString(this.encData),
-                Base64.encodeBase64URLSafeString(getBytesUtf8(Long.toString(this.atime.getTime() / 1000))),
-                Base64.encodeBase64URLSafeString(getBytesUtf8(this.tid)),
-                Base64.encodeBase64URLSafeString(this.iv)));
-        getLogger().debug("Created SCS with data = {}, atime = {}, tid = {}, iv = {}, authTag = {}.", new Object[]{
-                this.data, this.atime, this.tid, Base64.encodeBase64String(this.iv), Base64.encodeBase64String(this.authTag)});
+        this.boxed = box(this.encData, getBytesUtf8(Long.toString(this.atime.getTime() / 1000)),
+                getBytesUtf8(this.tid), this.iv);
+        this.authTag = crypto.createHmac(this.tid, this.boxed);
+        if(getLogger().isDebugEnabled()) {
+            getLogger().debug("Created SCS with data = {}, atime = {}, tid = {}, iv = {}, authTag = {}.", new Object[]{
+                    this.data, this.atime, this.tid, Base64.encodeBase64String(this.iv),
+                    Base64.encodeBase64String(this.authTag)});
+        }
     }
 
     SCSessionImpl(final boolean compressed, final CryptoTransformationService crypto, final String scs, final Long sMaxAge)
             throws SCSException {
-        final String[] parts = scs.split("\\|");
-        if(parts.length != 5) {
+        this(compressed, crypto, scs, sMaxAge, Clock.SYSTEM);
+    }
+
+    SCSessionImpl(final boolean compressed, final CryptoTransformationService crypto, final String scs, final Long sMaxAge,
+                  final Clock clock) throws SCSException {
+        // the fields are located by their separators, so no intermediate strings are created for them
+        final int sep1 = scs.indexOf(FIELD_SEPARATOR);
+        final int sep2 = (sep1 < 0)?-1:scs.indexOf(FIELD_SEPARATOR, sep1 + 1);
+        final int sep3 = (sep2 < 0)?-1:scs.indexOf(FIELD_SEPARATOR, sep2 + 1);
+        final int sep4 = (sep3 < 0)?-1:scs.indexOf(FIELD_SEPARATOR, sep3 + 1);
+        if(sep4 < 0 || sep4 == scs.length() - 1 || scs.indexOf(FIELD_SEPARATOR, sep4 + 1) >= 0) {
             getLogger().warn("SCS {} is broken.", scs);
             throw new SCSBrokenException("SCS haven't go all parts");
         }
 
-        this.tid = StringUtils.newStringUtf8(Base64.decodeBase64(parts[2]));
-        this.authTag = Base64.decodeBase64(parts[4]);
-        if(!crypto.verifyHmac(tid, authTag, box(parts[0], parts[1], parts[2], parts[3]))) {
+        this.tid = StringUtils.newStringUtf8(Base64Url.decode(scs, sep2 + 1, sep3));
+        this.authTag = Base64Url.decode(scs, sep4 + 1, scs.length());
+        this.boxed = scs.substring(0, sep4);
+        if(!crypto.verifyHmac(tid, authTag, this.boxed)) {
             getLogger().warn("SCS {} has a wrong mac.", scs);
             throw new SCSBrokenException("mac is wrong");
         }
 
-        final long atimeInSec = Long.valueOf(StringUtils.newStringUtf8(Base64.decodeBase64(parts[1])));
-        if(atimeInSec + getMaxAge(sMaxAge) < (new Date().getTime() / 1000)) {
+        final long atimeInSec = parseAtime(Base64Url.decode(scs, sep1 + 1, sep2));
+        final long now = clock.currentTimeMillis();
+        if(atimeInSec + getMaxAge(sMaxAge) < (now / 1000)) {
             getLogger().info("SCS {} is expired", scs);
-            throw new SCSExpiredException(new Date(atimeInSec * 1000), new Date());
+            throw new SCSExpiredException(new Date(atimeInSec * 1000), new Date(now));
         }
         this.atime = new Date(atimeInSec * 1000);
-        this.iv = Base64.decodeBase64(parts[3]);
-        this.encData = Base64.decodeBase64(parts[0]);
+        this.iv = Base64Url.decode(scs, sep3 + 1, sep4);
+        this.encData = Base64Url.decode(scs, 0, sep1);
         try {
             this.data = StringUtils.newStringUtf8((compressed)?
                     inflate(crypto.decrypt(this.tid, this.iv, this.encData)):
@@ -82,17 +96,40 @@ final class SCSessionImpl implements SCSession {
         } catch (CryptoException e) {
             throw new SCSException(e.getMessage());
         }
-        getLogger().debug("Parsed SCS with data = {}, atime = {}, tid = {}, iv = {}, authTag = {}.", new Object[]{
-                this.data, this.atime, this.tid, Base64.encodeBase64String(this.iv), Base64.encodeBase64String(this.authTag)});
+        if(getLogger().isDebugEnabled()) {
+            getLogger().debug("Parsed SCS with data = {}, atime = {}, tid = {}, iv = {}, authTag = {}.", new Object[]{
+                    this.data, this.atime, this.tid, Base64.encodeBase64String(this.iv),
+                    Base64.encodeBase64String(this.authTag)});
+        }
     }
 
     @Override
     public String asString() throws SCSException {
-        return box(Base64.encodeBase64URLSafeString(this.encData),
-                Base64.encodeBase64URLSafeString(getBytesUtf8(Long.toString(this.atime.getTime() / 1000))),
-                Base64.encodeBase64URLSafeString(getBytesUtf8(this.tid)),
-                Base64.encodeBase64URLSafeString(this.iv),
-                Base64.encodeBase64URLSafeString(this.authTag));
+        final byte[] bytes = new byte[encodedLength()];
+        encodeTo(bytes, 0);
+        return AsciiCharSequence.toString(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Returns the length of the string representation of this SCS.
+     * @return - length of the string representation.
+     */
+    int encodedLength() {
+        return boxed.length() + 1 + Base64Url.encodedLength(authTag.length);
+    }
+
+    /**
+     * Writes the string representation of this SCS as ASCII bytes into the passed array.
+     * @param dst - destination array.
+     * @param offset - offset in the destination array.
+     * @return - offset in the destination array next to the written SCS.
+     */
+    @SuppressWarnings("deprecation")
+    int encodeTo(final byte[] dst, final int offset) {
+        boxed.getBytes(0, boxed.length(), dst, offset);
+        int o = offset + boxed.length();
+        dst[o++] = FIELD_SEPARATOR;
+        return Base64Url.encode(authTag, dst, o);
     }
 
     @Override public String getData() {return data;}
@@ -101,18 +138,39 @@ final class SCSessionImpl implements SCSession {
     @Override public byte[] getIv() {return iv;}
     @Override public byte[] getAuthTag() {return authTag;}
 
-    private static String box(String... args) {
-        StringBuilder builder = new StringBuilder(128);
-        for(String arg : args)
-            builder.append(arg).append(FIELD_SEPARATOR);
-        if(args.length > 0) {
-            builder.setLength(builder.length() - 1);
+    private static String box(byte[]... args) {
+        int length = args.length - 1;
+        for(byte[] arg : args)
+            length += Base64Url.encodedLength(arg.length);
+        final byte[] bytes = new byte[length];
+        int o = 0;
+        for(byte[] arg : args) {
+            if(o > 0)
+                bytes[o++] = FIELD_SEPARATOR;
+            o = Base64Url.encode(arg, bytes, o);
         }
-        return builder.toString();
+        return AsciiCharSequence.toString(bytes, 0, bytes.length);
+    }
+
+    private static long parseAtime(final byte[] digits) throws SCSBrokenException {
+        if(digits.length == 0 || digits.length > 18)
+            throw new SCSBrokenException("wrong atime");
+        long atime = 0;
+        for(byte digit : digits) {
+            if(digit < '0' || digit > '9')
+                throw new SCSBrokenException("wrong atime");
+            atime = atime * 10 + (digit - '0');
+        }
+        return atime;
+    }
+
+    static long getMaxAge(final Long sMaxAge) {
+        return sMaxAge == null ? DefaultMaxAgeHolder.SESSION_MAX_AGE_IN_SEC : sMaxAge;
     }
 
-    private static long getMaxAge(final Long sMaxAge) {
-        return sMaxAge == null ? SESSION_MAX_AGE_IN_SEC : sMaxAge;
+    private static final class DefaultMaxAgeHolder {
+        private static final long SESSION_MAX_AGE_IN_SEC =
+                ServiceProvider.INSTANCE.getConfiguration().getLong(ConfigParameter.SESSION_MAX_AGE.key(), 3600L);
     }
 
     @Override
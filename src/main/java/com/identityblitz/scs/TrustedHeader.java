@@ -0,0 +1,187 @@
+package com.identityblitz.scs;
+
+import com.identityblitz.scs.error.SCSBrokenException;
+import com.identityblitz.scs.error.SCSException;
+import com.identityblitz.scs.error.SCSExpiredException;
+import com.identityblitz.scs.service.spi.ConfigurationService;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static org.apache.commons.codec.binary.StringUtils.getBytesUtf8;
+import static org.apache.commons.codec.binary.StringUtils.newStringUtf8;
+
+/**
+ * The internal header carrying the session state already verified by a gateway to the services behind it, so SCS is
+ * decoded and encoded once per request across the fleet. The gateway decodes the SCS cookie, strips it from
+ * the request and forwards the state in the request header. The service accepts the header instead of decoding
+ * the cookie, and if it changes the state, it returns the new state in the response header instead of setting
+ * the cookie. The gateway then encodes the SCS cookie once.
+ * The header value is <i>issue time.state.MAC</i>, where the state is the Base64 URL encoded UTF-8 bytes prefixed with
+ * 'v' or the empty string if there is no state, and the MAC is HMAC-SHA256 with the key shared by the gateway and
+ * the services. The direction of the header, the method and the path of the request (the request target without
+ * the query string, as received by the gateway) are authenticated too, so a header can't be replayed as a response
+ * one or for another resource. The gateway must forward the request target unchanged.
+ * The header is accepted only within the validity window around its issue time. Within the window a captured header
+ * can still be replayed for the same method and path, the window should be kept as short as the clock skew between
+ * the gateway and the services allows. The header must never be exposed to clients, it is only as secret as
+ * the internal network.
+ */
+public final class TrustedHeader {
+    /**
+     * Name of the header.
+     */
+    public static final String NAME = "X-SCS-Trusted";
+
+    private static final String REQUEST = "req.";
+    private static final String RESPONSE = "res.";
+    private static final int POOL_SIZE = 4 * Runtime.getRuntime().availableProcessors();
+
+    private final SecretKeySpec key;
+    private final long validityInMillis;
+    private final Clock clock;
+    private final BlockingQueue<Mac> macs = new ArrayBlockingQueue<Mac>(POOL_SIZE);
+
+    /**
+     * Creates the header codec.
+     * @param key - HMAC-SHA256 key shared by the gateway and the services.
+     * @param validityInMillis - validity window of the header in milliseconds.
+     * @param clock - clock.
+     */
+    public TrustedHeader(final byte[] key, final long validityInMillis, final Clock clock) {
+        this.key = new SecretKeySpec(key, "HmacSHA256");
+        this.validityInMillis = validityInMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Creates the header codec from the configuration parameters <b>com.identityblitz.scs.trustedHeader.key</b> (hex
+     * string) and <b>com.identityblitz.scs.trustedHeader.validityInMillis</b> (5000 by default).
+     * @param configuration - configuration.
+     * @return - header codec or null if the key is not configured.
+     */
+    public static TrustedHeader fromConfiguration(final ConfigurationService configuration) {
+        final String hexKey = configuration.getString(ConfigParameter.TRUSTED_HEADER_KEY.key());
+        if(hexKey == null)
+            return null;
+        try {
+            return new TrustedHeader(Hex.decodeHex(hexKey.toCharArray()),
+                    configuration.getLong(ConfigParameter.TRUSTED_HEADER_VALIDITY.key(), 5000L), Clock.SYSTEM);
+        } catch (DecoderException e) {
+            throw new IllegalArgumentException("trusted header key is not a valid hex string", e);
+        }
+    }
+
+    /**
+     * Returns the value of the request header carrying the passed state.
+     * @param method - method of the request.
+     * @param path - path of the request.
+     * @param state - session state, may be null.
+     * @return - header value.
+     */
+    public String encodeRequest(final String method, final String path, final String state) {
+        return encode(REQUEST + method + " " + path + " ", state);
+    }
+
+    /**
+     * Verifies the value of the request header and returns the state it carries.
+     * @param method - method of the request.
+     * @param path - path of the request.
+     * @param value - header value.
+     * @return - session state, may be null.
+     * @throws SCSBrokenException - if the value is malformed or its MAC is wrong, for instance it is issued for
+     * another request.
+     * @throws SCSExpiredException - if the value is out of the validity window.
+     */
+    public String decodeRequest(final String method, final String path, final String value) throws SCSException {
+        return decode(REQUEST + method + " " + path + " ", value);
+    }
+
+    /**
+     * Returns the value of the response header carrying the passed state.
+     * @param method - method of the request the response is for.
+     * @param path - path of the request the response is for.
+     * @param state - new session state, may be null.
+     * @return - header value.
+     */
+    public String encodeResponse(final String method, final String path, final String state) {
+        return encode(RESPONSE + method + " " + path + " ", state);
+    }
+
+    /**
+     * Verifies the value of the response header and returns the state it carries.
+     * @param method - method of the request the response is for.
+     * @param path - path of the request the response is for.
+     * @param value - header value.
+     * @return - new session state, may be null.
+     * @throws SCSBrokenException - if the value is malformed or its MAC is wrong, for instance it is issued for
+     * another request.
+     * @throws SCSExpiredException - if the value is out of the validity window.
+     */
+    public String decodeResponse(final String method, final String path, final String value) throws SCSException {
+        return decode(RESPONSE + method + " " + path + " ", value);
+    }
+
+    private String encode(final String request, final String state) {
+        final String payload = clock.currentTimeMillis() + "."
+                + ((state != null)?"v" + Base64Url.encodeToString(getBytesUtf8(state)):"");
+        return payload + "." + Base64Url.encodeToString(mac(request, payload));
+    }
+
+    private String decode(final String request, final String value) throws SCSException {
+        final int sep1 = value.indexOf('.');
+        final int sep2 = value.lastIndexOf('.');
+        if(sep1 <= 0 || sep2 == sep1)
+            throw new SCSBrokenException("trusted header is malformed");
+        final String payload = value.substring(0, sep2);
+        if(!MessageDigest.isEqual(mac(request, payload), Base64Url.decode(value, sep2 + 1, value.length())))
+            throw new SCSBrokenException("trusted header MAC is wrong");
+        final long issued;
+        try {
+            issued = Long.parseLong(value.substring(0, sep1));
+        } catch (NumberFormatException e) {
+            throw new SCSBrokenException("trusted header issue time is malformed");
+        }
+        final long now = clock.currentTimeMillis();
+        if(Math.abs(now - issued) > validityInMillis)
+            throw new SCSExpiredException(new Date(issued), new Date(now));
+        if(sep2 == sep1 + 1)
+            return null;
+        if(value.charAt(sep1 + 1) != 'v')
+            throw new SCSBrokenException("trusted header state is malformed");
+        return newStringUtf8(Base64Url.decode(value, sep1 + 2, sep2));
+    }
+
+    /**
+     * Computes the MAC of the payload bound to the direction, the method and the path of the request. The method
+     * doesn't contain spaces and the path can't contain them unescaped, so the fields are separated unambiguously.
+     */
+    private byte[] mac(final String request, final String payload) {
+        Mac mac = macs.poll();
+        if(mac == null)
+            mac = createMac();
+        try {
+            mac.update(getBytesUtf8(request));
+            return mac.doFinal(getBytesUtf8(payload));
+        } finally {
+            macs.offer(mac);
+        }
+    }
+
+    private Mac createMac() {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
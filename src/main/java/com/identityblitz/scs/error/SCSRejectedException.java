@@ -0,0 +1,12 @@
+package com.identityblitz.scs.error;
+
+/**
+ * This SCS exception points that a SCS operation is not accepted because the executor running the asynchronous
+ * operations is overloaded or the bulkhead of the service (see {@link com.identityblitz.scs.Bulkhead}) is saturated.
+ * The caller is expected to back off or to shed the request.
+ */
+public class SCSRejectedException extends SCSException {
+    public SCSRejectedException(String message) {
+        super(message);
+    }
+}
@@ -1,7 +1,7 @@
 package com.identityblitz.scs.glue;
 
 import com.identityblitz.scs.ConfigParameter;
-import com.identityblitz.scs.service.ServiceProvider;
+import com.identityblitz.scs.service.spi.ConfigurationService;
 import com.identityblitz.scs.service.spi.CryptoException;
 import com.identityblitz.scs.service.spi.CryptoTransformationService;
 import org.apache.commons.codec.DecoderException;
@@ -12,71 +12,63 @@ import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import static com.identityblitz.scs.LoggingUtils.getLogger;
 import static com.identityblitz.scs.service.ServiceProvider.service;
 
 /**
  * The basic cryptographic service implementing {@link com.identityblitz.scs.service.spi.CryptoTransformationService} interface.
+ * The ciphers and MACs are borrowed from bounded pools shared by all threads instead of being bound to threads,
+ * so the service doesn't create new instances for each request when requests are processed by short-lived
+ * (for instance virtual) threads.
  */
 public class BasicCryptoService implements CryptoTransformationService {
+    private static final int POOL_SIZE = 4 * Runtime.getRuntime().availableProcessors();
+
     private final SecretKeySpec encKey;
     private final SecretKeySpec hmacKey;
 
-    ThreadLocal<SecureRandom> secureRandom = new ThreadLocal<SecureRandom>() {
-        @Override
-        protected SecureRandom initialValue() {
-            return new SecureRandom();
-        }
-    };
-
-    ThreadLocal<Cipher> cipher = new ThreadLocal<Cipher>() {
-        @Override
-        protected Cipher initialValue() {
-            final Cipher cph;
-            try {
-                cph = Cipher.getInstance("AES/CBC/PKCS5Padding");
-                return cph;
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
-            } catch (NoSuchPaddingException e) {
-                throw new RuntimeException(e);
-            }
-        }
-    };
-
-    ThreadLocal<Mac> mac = new ThreadLocal<Mac>() {
-        @Override
-        protected Mac initialValue() {
-            try {
-                final Mac hmac = Mac.getInstance("HmacSHA1");
-                hmac.init(hmacKey);
-                return hmac;
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
-            } catch (InvalidKeyException e) {
-                throw new RuntimeException(e);
-            }
-        }
-    };
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final BlockingQueue<Cipher> ciphers = new ArrayBlockingQueue<Cipher>(POOL_SIZE);
+    private final BlockingQueue<Mac> macs = new ArrayBlockingQueue<Mac>(POOL_SIZE);
 
     public BasicCryptoService() throws DecoderException {
-        final String strEncKey = service().getConfiguration().getString(ConfigParameter.ENCODE_KEY.key());
-        if(strEncKey == null) {
-            getLogger().error("encoding key is undefined. To fix it is necessary to set " +
-                    "configuration parameter [" + ConfigParameter.ENCODE_KEY.key() + "]");
-            throw new IllegalStateException("encoding key is undefined.");
-        }
-        encKey = new SecretKeySpec(Hex.decodeHex(strEncKey.toCharArray()), "AES");
+        this(service().getConfiguration());
+    }
+
+    /**
+     * Creates the service reading the keys from the passed configuration instead of the global one.
+     * @param configuration - configuration holding the encoding and HMAC keys.
+     * @throws DecoderException - if any of keys is not a valid hex string.
+     */
+    public BasicCryptoService(final ConfigurationService configuration) throws DecoderException {
+        this(decodeKey(configuration, ConfigParameter.ENCODE_KEY, "encoding key"),
+                decodeKey(configuration, ConfigParameter.HMAC_KEY, "HMAC key"));
+    }
 
-        final String strHmacKey = service().getConfiguration().getString(ConfigParameter.HMAC_KEY.key());
-        if(strHmacKey == null) {
-            getLogger().error("HMAC key is undefined. To fix it is necessary to set " +
-                    "configuration parameter [" + ConfigParameter.HMAC_KEY.key() + "]");
-            throw new IllegalStateException("HMAC key is undefined.");
+    /**
+     * Creates the service with the explicitly passed keys.
+     * @param encKey - AES encoding key.
+     * @param hmacKey - HMAC-SHA1 key.
+     */
+    public BasicCryptoService(final byte[] encKey, final byte[] hmacKey) {
+        this.encKey = new SecretKeySpec(encKey, "AES");
+        this.hmacKey = new SecretKeySpec(hmacKey, "HmacSHA1");
+    }
+
+    private static byte[] decodeKey(final ConfigurationService configuration, final ConfigParameter param,
+                                    final String keyName) throws DecoderException {
+        final String strKey = configuration.getString(param.key());
+        if(strKey == null) {
+            getLogger().error(keyName + " is undefined. To fix it is necessary to set " +
+                    "configuration parameter [" + param.key() + "]");
+            throw new IllegalStateException(keyName + " is undefined.");
         }
-        hmacKey = new SecretKeySpec(Hex.decodeHex(strHmacKey.toCharArray()), "HmacSHA1");
+        return Hex.decodeHex(strKey.toCharArray());
     }
 
     @Override
@@ -87,62 +79,90 @@ public class BasicCryptoService implements CryptoTransformationService {
     @Override
     public byte[] generateIv(String tid) {
         final byte[] iv = new byte[16];
-        secureRandom.get().nextBytes(iv);
+        secureRandom.nextBytes(iv);
         return iv;
     }
 
     @Override
     public byte[] encrypt(String tid, byte[] iv, byte[] plainText) throws CryptoException {
-        final Cipher cph = cipher.get();
+        final Cipher cph = borrowCipher();
         try {
             cph.init(Cipher.ENCRYPT_MODE, encKey, new IvParameterSpec(iv));
+            return cph.doFinal(plainText);
         } catch (InvalidKeyException e) {
             throw new CryptoException(e.getMessage());
         } catch (InvalidAlgorithmParameterException e) {
             throw new CryptoException(e.getMessage());
-        }
-        try {
-            return cph.doFinal(plainText);
         } catch (IllegalBlockSizeException e) {
             throw new CryptoException(e.getMessage());
         } catch (BadPaddingException e) {
             throw new CryptoException(e.getMessage());
+        } finally {
+            ciphers.offer(cph);
         }
     }
 
     @Override
     public byte[] decrypt(String tid, byte[] iv, byte[] cipherText) throws CryptoException {
-        final Cipher cph = cipher.get();
+        final Cipher cph = borrowCipher();
         try {
             cph.init(Cipher.DECRYPT_MODE, encKey, new IvParameterSpec(iv));
+            return cph.doFinal(cipherText);
         } catch (InvalidKeyException e) {
             throw new CryptoException(e.getMessage());
         } catch (InvalidAlgorithmParameterException e) {
             throw new CryptoException(e.getMessage());
-        }
-        try {
-            return cph.doFinal(cipherText);
         } catch (IllegalBlockSizeException e) {
             throw new CryptoException(e.getMessage());
         } catch (BadPaddingException e) {
             throw new CryptoException(e.getMessage());
+        } finally {
+            ciphers.offer(cph);
         }
     }
 
     @Override
     public byte[] createHmac(String tid, String msg) {
         final byte[] in = StringUtils.getBytesUtf8(msg);
-        return mac.get().doFinal(in);
+        final Mac hmac = borrowMac();
+        try {
+            return hmac.doFinal(in);
+        } finally {
+            macs.offer(hmac);
+        }
+    }
+
+    private Cipher borrowCipher() throws CryptoException {
+        final Cipher cph = ciphers.poll();
+        if(cph != null)
+            return cph;
+        try {
+            return Cipher.getInstance("AES/CBC/PKCS5Padding");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CryptoException(e.getMessage());
+        } catch (NoSuchPaddingException e) {
+            throw new CryptoException(e.getMessage());
+        }
+    }
+
+    private Mac borrowMac() {
+        final Mac hmac = macs.poll();
+        if(hmac != null)
+            return hmac;
+        try {
+            final Mac created = Mac.getInstance("HmacSHA1");
+            created.init(hmacKey);
+            return created;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
     public boolean verifyHmac(String tid, byte[] tag, String msg) {
-        final byte[] calculated = createHmac(tid, msg);
-        boolean equal = true;
-        for(int i = 0; i < calculated.length; i++) {
-            equal &= calculated[i] == tag[i];
-        }
-        return equal;
+        return MessageDigest.isEqual(createHmac(tid, msg), tag);
     }
 
 }
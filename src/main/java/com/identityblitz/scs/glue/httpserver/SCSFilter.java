@@ -0,0 +1,104 @@
+package com.identityblitz.scs.glue.httpserver;
+
+import com.identityblitz.scs.CookieUtils;
+import com.identityblitz.scs.SCSContext;
+import com.identityblitz.scs.SCSService;
+import com.identityblitz.scs.SCSession;
+import com.identityblitz.scs.error.SCSException;
+import com.identityblitz.scs.error.SCSExpiredException;
+import com.identityblitz.scs.error.SCSRejectedException;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.util.List;
+
+import static com.identityblitz.scs.LoggingUtils.getLogger;
+
+/**
+ * This filter adds Secure Cookie Session (SCS) functionality to the handlers of the JDK built-in HTTP server
+ * (com.sun.net.httpserver), so lightweight services get SCS without a servlet container and without any extra
+ * dependencies. The filter must be added to the filters of the HTTP context before the filters that can try to get
+ * access to session state. The next filters and the handler get {@link com.identityblitz.scs.glue.httpserver.SCSHttpExchange}
+ * carrying the session state. To get current session state it is necessary to use the function
+ * {@link com.identityblitz.scs.SCSService#getSCS(Object)}
+ * and to change the current session state - the function
+ * {@link com.identityblitz.scs.SCSService#changeSCS(Object, String)}. While the next filters and the handler are
+ * called, the session state is also available through {@link com.identityblitz.scs.SCSContext#current()}.
+ * The SCS cookie is set when the response headers are sent. The filter keeps no state bound to threads, so it may
+ * be used with any executor of the server including the ones running each exchange on its own virtual thread.
+ * The requests excluded by the rules of the service (see
+ * {@link com.identityblitz.scs.SCSService#isExcluded(String, String, int)}) are passed as is.
+ * If the SCS decoding is shed by the bulkhead of the service (see {@link com.identityblitz.scs.Bulkhead}), the request
+ * is processed as if it had no SCS cookie or answered with 503 (Service Unavailable) according to the fallback of
+ * the bulkhead.
+ */
+public class SCSFilter extends Filter {
+    private final SCSService scsService;
+
+    public SCSFilter() {
+        this(SCSService.getDefault());
+    }
+
+    public SCSFilter(final SCSService scsService) {
+        this.scsService = scsService;
+    }
+
+    @Override
+    public void doFilter(final HttpExchange exchange, final Chain chain) throws IOException {
+        final String path = exchange.getRequestURI().getRawPath();
+        if(scsService.isExcluded(exchange.getRequestMethod(), path, 0)) {
+            getLogger().debug("Request {} is excluded from SCS processing.", path);
+            chain.doFilter(exchange);
+            return;
+        }
+
+        final String cookieValue = findCookieValue(exchange.getRequestHeaders().get("Cookie"),
+                scsService.getCookieName());
+        String state = null;
+        boolean hadCookie = cookieValue != null;
+        if(cookieValue != null) {
+            try {
+                final SCSession session = scsService.decode(cookieValue);
+                getLogger().debug("SCS [{}] is extracted from request cookie.", session);
+                state = session.getData();
+            } catch (SCSExpiredException e) {
+            } catch (SCSRejectedException e) {
+                if(!scsService.isShedAsAbsent()) {
+                    getLogger().debug("SCS decoding is shed, request {} is rejected.", path);
+                    exchange.sendResponseHeaders(503, -1);
+                    exchange.close();
+                    return;
+                }
+                getLogger().debug("SCS decoding is shed, request {} is processed without session.", path);
+                hadCookie = false;
+            } catch (SCSException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+        final SCSHttpExchange scsExchange = new SCSHttpExchange(exchange, scsService, state, hadCookie);
+        final SCSContext previous = SCSContext.bind(SCSService.contextOf(scsExchange));
+        try {
+            chain.doFilter(scsExchange);
+        } finally {
+            SCSContext.restore(previous);
+        }
+        scsExchange.finish();
+    }
+
+    private static String findCookieValue(final List<String> headers, final String name) {
+        if(headers == null)
+            return null;
+        for(String header : headers) {
+            final String value = CookieUtils.findCookieValue(header, name);
+            if(value != null)
+                return value;
+        }
+        return null;
+    }
+
+    @Override
+    public String description() {
+        return "Secure Cookie Session filter";
+    }
+}
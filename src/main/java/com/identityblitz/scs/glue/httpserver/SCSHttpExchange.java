@@ -0,0 +1,185 @@
+package com.identityblitz.scs.glue.httpserver;
+
+import com.identityblitz.scs.CookieUtils;
+import com.identityblitz.scs.SCSService;
+import com.identityblitz.scs.SCSession;
+import com.identityblitz.scs.error.SCSException;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.List;
+
+import static com.identityblitz.scs.LoggingUtils.getLogger;
+
+/**
+ * The exchange passed by {@link com.identityblitz.scs.glue.httpserver.SCSFilter} to the next filters and the handler.
+ * It is a thin wrapper delegating all calls to the original exchange and carrying the SCS state of the request.
+ * The state is kept in the wrapper itself rather than in the exchange attributes, because the attributes of
+ * the JDK HTTP server exchanges may be shared by all the exchanges of the HTTP context.
+ * The SCS cookie is added to the response headers when {@link #sendResponseHeaders(int, long)} is called, the session
+ * state changes made after it are lost and reported to the log.
+ */
+public class SCSHttpExchange extends HttpExchange {
+    private final HttpExchange exchange;
+    private final SCSService scsService;
+    private final boolean hadCookie;
+    private volatile String state;
+    private volatile boolean stored;
+    private String storedState;
+
+    SCSHttpExchange(final HttpExchange exchange, final SCSService scsService, final String state,
+                    final boolean hadCookie) {
+        this.exchange = exchange;
+        this.scsService = scsService;
+        this.state = state;
+        this.hadCookie = hadCookie;
+    }
+
+    public String getSCS() {
+        return state;
+    }
+
+    public void changeSCS(final String session) {
+        if(scsService.isVerifyOnly())
+            throw new IllegalStateException("SCS can't be changed in the verify-only mode");
+        this.state = session;
+    }
+
+    /**
+     * Reports the session state changes made after the SCS cookie has been set. Called when the request processing
+     * is finished.
+     */
+    void finish() {
+        if(stored && !equals(storedState, state)) {
+            getLogger().warn("Session state is changed after SCS cookie has been set, the changes made after " +
+                    "the response headers have been sent will be lost.");
+        }
+    }
+
+    private void store() throws SCSException {
+        stored = true;
+        storedState = state;
+        final Headers headers = exchange.getResponseHeaders();
+        final List<String> setCookies = headers.get("Set-Cookie");
+        if(setCookies != null) {
+            for(String header : setCookies) {
+                if(CookieUtils.isSetCookieOf(header, scsService.getCookieName())) {
+                    getLogger().debug("SCS cookie is already set by the application.");
+                    return;
+                }
+            }
+        }
+        if(storedState != null) {
+            final SCSession session = scsService.encode(storedState);
+            getLogger().debug("session state is stored into SCS cookie {}.", session);
+            headers.add("Set-Cookie", scsService.toSetCookieHeader(session).toString());
+        }
+        else if(hadCookie) {
+            getLogger().debug("there is no session state to store in SCS cookie.");
+            headers.add("Set-Cookie", scsService.toSetCookieHeader("") + "; Max-Age=0");
+        }
+    }
+
+    private static boolean equals(final String a, final String b) {
+        return (a == null)?b == null:a.equals(b);
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if(!stored && !scsService.isVerifyOnly()) {
+            try {
+                store();
+            } catch (SCSException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+        exchange.sendResponseHeaders(rCode, responseLength);
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return exchange.getRequestHeaders();
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return exchange.getResponseHeaders();
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return exchange.getRequestURI();
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return exchange.getRequestMethod();
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return exchange.getHttpContext();
+    }
+
+    @Override
+    public void close() {
+        exchange.close();
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return exchange.getRequestBody();
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return exchange.getResponseBody();
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return exchange.getRemoteAddress();
+    }
+
+    @Override
+    public int getResponseCode() {
+        return exchange.getResponseCode();
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return exchange.getLocalAddress();
+    }
+
+    @Override
+    public String getProtocol() {
+        return exchange.getProtocol();
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return exchange.getAttribute(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        exchange.setAttribute(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        exchange.setStreams(i, o);
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return exchange.getPrincipal();
+    }
+}
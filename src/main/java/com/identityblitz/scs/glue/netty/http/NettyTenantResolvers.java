@@ -0,0 +1,75 @@
+package com.identityblitz.scs.glue.netty.http;
+
+import com.identityblitz.scs.tenant.TenantResolver;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.Locale;
+
+/**
+ * The collection of tenant resolvers for the Netty HTTP requests.
+ */
+public class NettyTenantResolvers {
+
+    private NettyTenantResolvers() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns the resolver taking the Host header without port in lower case as the tenant identifier.
+     * @return - tenant resolver.
+     */
+    public static TenantResolver<HttpRequest> byHost() {
+        return new TenantResolver<HttpRequest>() {
+            @Override
+            public String resolveTenant(HttpRequest request) {
+                final String host = HttpHeaders.getHost(request);
+                if(host == null)
+                    return null;
+                final int portIdx = host.lastIndexOf(':');
+                return ((portIdx < 0 || host.indexOf(']', portIdx) >= 0)?host:host.substring(0, portIdx))
+                        .toLowerCase(Locale.ENGLISH);
+            }
+        };
+    }
+
+    /**
+     * Returns the resolver taking the first segment of the request path as the tenant identifier. For example
+     * the request <b>/acme/login</b> belongs to the tenant <b>acme</b>.
+     * @return - tenant resolver.
+     */
+    public static TenantResolver<HttpRequest> byPathPrefix() {
+        return new TenantResolver<HttpRequest>() {
+            @Override
+            public String resolveTenant(HttpRequest request) {
+                final String uri = request.getUri();
+                if(uri == null || uri.length() < 2 || uri.charAt(0) != '/')
+                    return null;
+                int end = 1;
+                while(end < uri.length()) {
+                    final char c = uri.charAt(end);
+                    if(c == '/' || c == '?' || c == '#')
+                        break;
+                    end++;
+                }
+                return (end == 1)?null:uri.substring(1, end);
+            }
+        };
+    }
+
+    /**
+     * Returns the resolver taking the value of the specified request header as the tenant identifier. The header
+     * is usually set by a handler or a proxy placed before the SCS handler.
+     * @param headerName - name of the header.
+     * @return - tenant resolver.
+     */
+    public static TenantResolver<HttpRequest> byHeader(final String headerName) {
+        return new TenantResolver<HttpRequest>() {
+            @Override
+            public String resolveTenant(HttpRequest request) {
+                return request.headers().get(headerName);
+            }
+        };
+    }
+
+}
@@ -1,23 +1,86 @@
 package com.identityblitz.scs.glue.netty.http;
 
-import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
 
-public class SCSFullHttpRequest extends DefaultFullHttpRequest {
-    private String session = null;
+/**
+ * The request passed by {@link com.identityblitz.scs.glue.netty.http.SCSHandler} to the next handlers when
+ * the requests are aggregated. It is a thin wrapper delegating all calls to the original request, so neither headers
+ * nor content are copied. The reference count of the wrapper is the reference count of the original request.
+ */
+public class SCSFullHttpRequest extends SCSHttpRequest implements FullHttpRequest {
+    private final FullHttpRequest request;
 
-    SCSFullHttpRequest(final FullHttpRequest req, final String session) {
-        super(req.getProtocolVersion(), req.getMethod(), req.getUri(), req.content(), true);
-        this.headers().set(req.headers());
-        this.trailingHeaders().set(req.trailingHeaders());
-        this.session = session;
+    SCSFullHttpRequest(final FullHttpRequest request, final SCSState state) {
+        super(request, state);
+        this.request = request;
     }
 
-    public String getSCS() {
-        return session;
+    @Override
+    public FullHttpRequest copy() {
+        return new SCSFullHttpRequest(request.copy(), getState());
     }
 
-    public void changeSCS(String session) {
-        this.session = session;
+    @Override
+    public FullHttpRequest duplicate() {
+        return new SCSFullHttpRequest((FullHttpRequest) request.duplicate(), getState());
+    }
+
+    @Override
+    public FullHttpRequest retain(int increment) {
+        request.retain(increment);
+        return this;
+    }
+
+    @Override
+    public FullHttpRequest retain() {
+        request.retain();
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return request.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return request.release(decrement);
+    }
+
+    @Override
+    public int refCnt() {
+        return request.refCnt();
+    }
+
+    @Override
+    public FullHttpRequest setProtocolVersion(HttpVersion version) {
+        super.setProtocolVersion(version);
+        return this;
+    }
+
+    @Override
+    public FullHttpRequest setMethod(HttpMethod method) {
+        super.setMethod(method);
+        return this;
+    }
+
+    @Override
+    public FullHttpRequest setUri(String uri) {
+        super.setUri(uri);
+        return this;
+    }
+
+    @Override
+    public HttpHeaders trailingHeaders() {
+        return request.trailingHeaders();
+    }
+
+    @Override
+    public ByteBuf content() {
+        return request.content();
     }
 }
@@ -1,136 +1,679 @@
 package com.identityblitz.scs.glue.netty.http;
 
-import com.identityblitz.scs.ConfigParameter;
+import com.identityblitz.scs.CookieUtils;
+import com.identityblitz.scs.OffloadPolicy;
+import com.identityblitz.scs.SCSContext;
 import com.identityblitz.scs.SCSService;
 import com.identityblitz.scs.SCSession;
+import com.identityblitz.scs.TrustedHeader;
+import com.identityblitz.scs.error.SCSException;
 import com.identityblitz.scs.error.SCSExpiredException;
-import com.identityblitz.scs.service.ServiceProvider;
+import com.identityblitz.scs.error.SCSRejectedException;
+import com.identityblitz.scs.tenant.TenantRegistry;
+import com.identityblitz.scs.tenant.TenantResolver;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOutboundHandler;
 import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.DecoderException;
 import io.netty.handler.codec.MessageToMessageDecoder;
 import io.netty.handler.codec.http.*;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
 
 import java.net.SocketAddress;
-import java.util.Collections;
+import java.util.ArrayDeque;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Map;
+import java.util.Queue;
 
 import static com.identityblitz.scs.LoggingUtils.getLogger;
-import static com.identityblitz.scs.service.ServiceProvider.service;
+import static com.identityblitz.scs.OffloadPolicy.Operation.DECODE;
+import static com.identityblitz.scs.OffloadPolicy.Operation.ENCODE;
 import static io.netty.handler.codec.http.HttpHeaders.Names.COOKIE;
 import static io.netty.handler.codec.http.HttpHeaders.Names.SET_COOKIE;
 
 /**
  * This Netty handler allows to add Secure Cookie Session (SCS) functionality to Netty HTTP protocol.
  * The handler sould be insert into the pipeline after http handlers
- * {@link io.netty.handler.codec.http.HttpRequestDecoder}, {@link io.netty.handler.codec.http.HttpObjectAggregator},
- * {@link io.netty.handler.codec.http.HttpResponseEncoder} and before any handlers that use SCS.
+ * {@link io.netty.handler.codec.http.HttpRequestDecoder}, {@link io.netty.handler.codec.http.HttpResponseEncoder}
+ * and before any handlers that use SCS. If {@link io.netty.handler.codec.http.HttpObjectAggregator} is placed before
+ * the handler, the requests are passed further as {@link com.identityblitz.scs.glue.netty.http.SCSFullHttpRequest}.
+ * Otherwise only the request heads are processed and passed as
+ * {@link com.identityblitz.scs.glue.netty.http.SCSHttpRequest}, the content chunks are passed as is and the SCS cookie
+ * is set to the first {@link io.netty.handler.codec.http.HttpResponse} of the response, so requests and responses of
+ * any size are handled in constant memory.
  * To get current session state it is necessary to use the function
  * {@link com.identityblitz.scs.SCSService#getSCS(Object)}
  * and to change the current session state - the function
- * {@link com.identityblitz.scs.SCSService#changeSCS(Object, String)}.
+ * {@link com.identityblitz.scs.SCSService#changeSCS(Object, String)}. While the request head is passed to the next
+ * handlers, the session state is also available through {@link com.identityblitz.scs.SCSContext#current()}.
  * The filter has only one boolean option to configure <b>com.blitz.scs.useCompression</b>. This option turns off/on
- * using of compression session state. Default value is not to use compression.
+ * using of compression session state. Default value is not to use compression. The option is ignored if the handler
+ * is created with an explicitly built {@link com.identityblitz.scs.SCSService}.
+ * The handler is sharable, so one instance can be added to the pipelines of all channels. The session states of
+ * the requests are kept per channel in the order the requests are received and matched with the responses in the same
+ * order, so the handler stays correct with the HTTP/1.1 pipelining. A response written without preceding request
+ * (for instance, the response to a malformed request) and the informational responses are passed as is.
+ * The handler built with {@link Builder#http2(boolean)} also serves HTTP/2 streams translated to HTTP/1.x messages,
+ * where each message carries the stream identifier in the <b>x-http2-stream-id</b> extension header. The session
+ * states of such requests are kept per stream and matched with the responses by the stream identifier, so
+ * the responses of the multiplexed streams may be written in any order. Otherwise the header is controlled by
+ * the client, so it is removed from the requests and ignored in the responses. The SCS cookie of the requests is
+ * also looked for across all <b>cookie</b> header fields, as HTTP/2 clients may split the cookies into separate
+ * fields (RFC 7540, section 8.1.2.5).
+ * The SCS cookie of a WebSocket upgrade request is verified once and the decoded session state together with its
+ * expiry time is bound to the channel as {@link com.identityblitz.scs.glue.netty.http.SCSWebSocketSession}, so
+ * the messages of the connection can be checked cheaply by
+ * {@link com.identityblitz.scs.glue.netty.http.SCSWebSocketHandler}.
+ * The handler may also serve a gateway in front of other services (see
+ * {@link Builder#forwardTrusted(com.identityblitz.scs.TrustedHeader)}). Then the SCS cookie is verified once by the gateway,
+ * stripped from the request and the session state is forwarded in the {@link com.identityblitz.scs.TrustedHeader},
+ * the new state returned by the service in the same header is encoded into the SCS cookie by the gateway.
+ * The requests excluded by the rules of the service (see
+ * {@link com.identityblitz.scs.SCSService#isExcluded(String, String, int)}) and their responses are passed as is.
+ * If the SCS decoding is shed by the bulkhead of the service (see {@link com.identityblitz.scs.Bulkhead}), the request
+ * is processed as if it had no SCS cookie or answered with 503 (Service Unavailable) according to the fallback of
+ * the bulkhead. The 503 response to an HTTP/1.x request keeps the place of the request among the pending ones, so
+ * it is written once the responses to the earlier requests are, and the content of the rejected request is dropped.
+ * The requests of the tenants refused by the registry (see
+ * {@link com.identityblitz.scs.tenant.TenantRegistry#getService(String)}) are answered with 404 (Not Found) the same way.
  */
-public class SCSHandler extends MessageToMessageDecoder<FullHttpRequest> implements ChannelOutboundHandler {
-    private static final String SCS_COOKIE_NAME = service().getConfiguration()
-            .getString(ConfigParameter.SCS_COOKIE_NAME.key(), "SCS");
-    private static final String DOMAIN = service().getConfiguration()
-            .getString(ConfigParameter.DOMAIN.key());
-    private static final boolean IS_SECURE = service().getConfiguration()
-            .getBoolean(ConfigParameter.IS_SECURE.key(), false);
-    private static final String PATH = service().getConfiguration()
-            .getString(ConfigParameter.PATH.key(), "/");
+@ChannelHandler.Sharable
+public class SCSHandler extends MessageToMessageDecoder<HttpRequest> implements ChannelOutboundHandler {
+    private static final AttributeKey<Queue<SCSState>> PENDING_REQUESTS =
+            AttributeKey.valueOf("com.identityblitz.scs.pendingRequests");
+    private static final AttributeKey<Map<String, SCSState>> PENDING_STREAMS =
+            AttributeKey.valueOf("com.identityblitz.scs.pendingStreams");
+    private static final AttributeKey<ChannelOffload> CHANNEL_OFFLOAD =
+            AttributeKey.valueOf("com.identityblitz.scs.channelOffload");
+    private static final AttributeKey<Boolean> RESPONSE_OPEN =
+            AttributeKey.valueOf("com.identityblitz.scs.responseOpen");
+    private static final AttributeKey<Boolean> DROP_CONTENT =
+            AttributeKey.valueOf("com.identityblitz.scs.dropContent");
 
-    private static final SCSService scsService;
-    static {
-        scsService = new SCSService();
-        scsService.init(service().getConfiguration()
-                .getBoolean(ConfigParameter.USE_COMPRESSION.key(), false), null);
+    /**
+     * Name of the extension header carrying the HTTP/2 stream identifier of a translated HTTP/1.x message.
+     */
+    public static final String STREAM_ID = "x-http2-stream-id";
+
+    private final SCSService scsService;
+    private final TenantRegistry tenants;
+    private final TenantResolver<HttpRequest> tenantResolver;
+    private final EventExecutorGroup cryptoGroup;
+    private final OffloadPolicy offloadPolicy;
+    private final TrustedHeader trustedHeader;
+    private final boolean http2;
+
+    public SCSHandler() {
+        this(SCSService.getDefault());
+    }
+
+    public SCSHandler(final SCSService scsService) {
+        this(scsService, null, null, null, null, null, false);
+    }
+
+    /**
+     * Creates the handler in the multi-tenant mode. For each request the SCS service of the tenant determined by
+     * the passed resolver is used.
+     * @param tenants - registry of the tenant services.
+     * @param tenantResolver - tenant resolver, see {@link com.identityblitz.scs.glue.netty.http.NettyTenantResolvers}.
+     */
+    public SCSHandler(final TenantRegistry tenants, final TenantResolver<HttpRequest> tenantResolver) {
+        this(null, tenants, tenantResolver, null, null, null, false);
+    }
+
+    private SCSHandler(final SCSService scsService, final TenantRegistry tenants,
+                       final TenantResolver<HttpRequest> tenantResolver, final EventExecutorGroup cryptoGroup,
+                       final OffloadPolicy offloadPolicy, final TrustedHeader trustedHeader, final boolean http2) {
+        this.scsService = scsService;
+        this.tenants = tenants;
+        this.tenantResolver = tenantResolver;
+        this.cryptoGroup = cryptoGroup;
+        this.offloadPolicy = offloadPolicy;
+        this.trustedHeader = trustedHeader;
+        this.http2 = http2;
     }
 
-    private SCSFullHttpRequest req;
+    /**
+     * Returns a new builder to create the handler with the optional features. The handler is immutable once built,
+     * so it can be shared by the pipelines of all channels.
+     * @return - builder.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
 
     @Override
-    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
-        if (msg instanceof HttpResponse) {
-            HttpResponse response = (HttpResponse) msg;
-            final String cookiesHeader = response.headers().get(SET_COOKIE);
-            final Set<Cookie> cookies;
-            if (cookiesHeader != null)
-                cookies = CookieDecoder.decode(cookiesHeader);
-            else
-                cookies = Collections.emptySet();
-            final Set<Cookie> newCookies = new TreeSet<Cookie>(cookies);
-
-            final String state = req.getSCS();
-            this.req = null;
-            if(state != null) {
-                final SCSession session = scsService.encode(state);
-                getLogger().debug("session state is stored into SCS cookie {}.", session);
-                DefaultCookie scsCookie = new DefaultCookie(SCS_COOKIE_NAME, session.asString());
-                scsCookie.setDomain(DOMAIN);
-                scsCookie.setPath(PATH);
-                scsCookie.setHttpOnly(true);
-                scsCookie.setSecure(IS_SECURE);
-                newCookies.add(scsCookie);
+    public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) throws Exception {
+        final boolean informational = msg instanceof HttpResponse && ((HttpResponse) msg).getStatus().code() < 200;
+        writeMessage(ctx, msg, promise);
+        if (informational)
+            return;
+        if (msg instanceof LastHttpContent) {
+            ctx.attr(RESPONSE_OPEN).remove();
+            writeRejections(ctx);
+        }
+        else if (msg instanceof HttpResponse) {
+            ctx.attr(RESPONSE_OPEN).set(Boolean.TRUE);
+        }
+    }
+
+    private void writeMessage(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise)
+            throws Exception {
+        final ChannelOffload offload = channelOffload(ctx);
+        final SCSState req;
+        if (msg instanceof HttpResponse && (req = pollPending(ctx, (HttpResponse) msg, http2)) != null
+                && req != SCSState.EXCLUDED && !req.isRejected()) {
+            final HttpResponse response = (HttpResponse) msg;
+            final String state = req.getSession();
+            if (offload != null && (offload.outboundInFlight > 0
+                    || (state != null && offloadPolicy.isExpensive(ENCODE, state.length())))) {
+                offload.outboundInFlight++;
+                offload.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Throwable failure = null;
+                        try {
+                            storeState(response, req);
+                        } catch (Throwable e) {
+                            failure = e;
+                        }
+                        completeWrite(ctx, offload, msg, promise, failure);
+                    }
+                });
+                return;
             }
-            else {
-                getLogger().debug("there is no session state to store in SCS cookie.");
-                final Cookie scs = findCookie(newCookies, SCS_COOKIE_NAME);
-                if(scs != null)
-                    newCookies.remove(scs);
+            storeState(response, req);
+        }
+        else if (offload != null && offload.outboundInFlight > 0) {
+            offload.outboundInFlight++;
+            offload.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    completeWrite(ctx, offload, msg, promise, null);
+                }
+            });
+            return;
+        }
+        ctx.writeAndFlush(msg, promise);
+    }
+
+    private static void completeWrite(final ChannelHandlerContext ctx, final ChannelOffload offload, final Object msg,
+                                      final ChannelPromise promise, final Throwable failure) {
+        ctx.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                offload.outboundInFlight--;
+                if (failure != null) {
+                    ReferenceCountUtil.release(msg);
+                    promise.setFailure(failure);
+                }
+                else {
+                    ctx.writeAndFlush(msg, promise);
+                }
             }
-            response.headers().set(SET_COOKIE, ServerCookieEncoder.encode(newCookies));
+        });
+    }
 
+    private void storeState(final HttpResponse response, final SCSState req) throws SCSException {
+        final SCSService scsService = req.getSCSService();
+        final boolean cleared = trustedHeader != null && acceptTrusted(response, req);
+        if (scsService.isVerifyOnly())
+            return;
+        if (hasSetCookie(response, scsService.getCookieName())) {
+            getLogger().debug("SCS cookie is already set by the application.");
+            return;
+        }
+
+        final String state = req.getSession();
+        if(state != null) {
+            final long start = System.nanoTime();
+            final SCSession session = scsService.encode(state);
+            if (offloadPolicy != null)
+                offloadPolicy.record(ENCODE, state.length(), System.nanoTime() - start);
+            getLogger().debug("session state is stored into SCS cookie {}.", session);
+            response.headers().add(SET_COOKIE, scsService.toSetCookieHeader(session));
+        }
+        else if (cleared) {
+            getLogger().debug("session state is cleared by the service, SCS cookie is expired.");
+            response.headers().add(SET_COOKIE, scsService.toSetCookieHeader("") + "; Max-Age=0");
+        }
+        else {
+            getLogger().debug("there is no session state to store in SCS cookie.");
         }
-        ctx.writeAndFlush(msg, promise);
+    }
+
+    /**
+     * Replaces the state of the request with the state returned by the service in the trusted header of the response.
+     * @return - true if the service has cleared the session state the request was sent with.
+     */
+    private boolean acceptTrusted(final HttpResponse response, final SCSState req) {
+        final String value = response.headers().get(TrustedHeader.NAME);
+        if (value == null)
+            return false;
+        response.headers().remove(TrustedHeader.NAME);
+        try {
+            final boolean hadSession = req.getSession() != null;
+            req.setSession(trustedHeader.decodeResponse(req.getMethod(), req.getPath(), value));
+            getLogger().debug("session state is returned by the service in the trusted header.");
+            return hadSession && req.getSession() == null;
+        } catch (SCSException e) {
+            getLogger().error("The trusted header of the response is rejected: {}.", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Replaces the SCS cookie of the request with the trusted header carrying the verified session state.
+     */
+    private void forwardTrusted(final HttpRequest msg, final SCSService scsService, final SCSState scsState) {
+        final HttpHeaders headers = msg.headers();
+        if (headers.contains(COOKIE)) {
+            final List<String> cookies = headers.getAll(COOKIE);
+            headers.remove(COOKIE);
+            for (String header : cookies) {
+                final String others = CookieUtils.removeCookie(header, scsService.getCookieName());
+                if (others != null)
+                    headers.add(COOKIE, others);
+            }
+        }
+        final String method = msg.getMethod().name();
+        final String path = requestPath(msg.getUri());
+        scsState.setRequest(method, path);
+        headers.set(TrustedHeader.NAME, trustedHeader.encodeRequest(method, path, scsState.getSession()));
+    }
+
+    private static boolean hasSetCookie(final HttpResponse response, final String name) {
+        if (!response.headers().contains(SET_COOKIE))
+            return false;
+        for (String header : response.headers().getAll(SET_COOKIE)) {
+            if (CookieUtils.isSetCookieOf(header, name))
+                return true;
+        }
+        return false;
     }
 
     @Override
-    protected void decode(ChannelHandlerContext ctx, FullHttpRequest msg, List<Object> out) throws Exception {
-        String state = null;
-        final String cookieHeader = msg.headers().get(COOKIE);
-        if (cookieHeader != null) {
-            final Set<Cookie> cookies = CookieDecoder.decode(cookieHeader);
-            final Cookie cookie = findCookie(cookies, SCS_COOKIE_NAME);
-            if (cookie != null) {
-                try {
-                    SCSession session = scsService.decode(cookie.getValue());
-                    if(session != null) {
-                        getLogger().debug("SCS [{}] is extracted from request cookie.", session);
-                        state = session.getData();
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+        final ChannelOffload offload;
+        if (!(msg instanceof HttpRequest) && (offload = channelOffload(ctx)) != null && offload.inboundInFlight > 0) {
+            // the content of a request which head is being decoded must not overtake it
+            offload.inboundInFlight++;
+            offload.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ctx.executor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            offload.inboundInFlight--;
+                            if (!dropContent(ctx, msg))
+                                ctx.fireChannelRead(msg);
+                        }
+                    });
+                }
+            });
+            return;
+        }
+        if (!(msg instanceof HttpRequest) && dropContent(ctx, msg))
+            return;
+        // the context bound by decode is visible to the handlers the decoded request is passed to
+        final SCSContext previous = SCSContext.current();
+        try {
+            super.channelRead(ctx, msg);
+        } finally {
+            SCSContext.restore(previous);
+        }
+    }
+
+    @Override
+    protected void decode(final ChannelHandlerContext ctx, final HttpRequest msg, final List<Object> out)
+            throws Exception {
+        final SCSService scsService = (tenants == null)?this.scsService:
+                tenants.getService(tenantResolver.resolveTenant(msg));
+        final String streamId;
+        if (http2) {
+            streamId = msg.headers().get(STREAM_ID);
+        }
+        else {
+            streamId = null;
+            msg.headers().remove(STREAM_ID);
+        }
+        if (scsService == null) {
+            getLogger().debug("tenant of request {} is refused.", msg.getUri());
+            final SCSState refused = new SCSState(null, null);
+            if (streamId == null)
+                addPending(ctx, null, refused);
+            reject(ctx, msg, streamId, refused, HttpResponseStatus.NOT_FOUND);
+            return;
+        }
+        final boolean excluded = scsService.isExcluded(msg.getMethod().name(), msg.getUri(), pathOffset(msg.getUri()));
+        final String cookieValue = excluded?null:findCookieValue(msg, scsService.getCookieName(), streamId != null);
+        final ChannelOffload offload = channelOffload(ctx);
+        if (offload != null && (offload.inboundInFlight > 0
+                || (cookieValue != null && offloadPolicy.isExpensive(DECODE, cookieValue.length())))) {
+            final SCSState scsState = excluded?SCSState.EXCLUDED:new SCSState(scsService, null);
+            addPending(ctx, streamId, scsState);
+            final HttpRequest request = excluded?ReferenceCountUtil.retain(msg):wrap(msg, scsState);
+            offload.inboundInFlight++;
+            offload.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    SCSession session = null;
+                    Throwable failure = null;
+                    try {
+                        session = decodeState(scsService, cookieValue, true);
+                    } catch (Throwable e) {
+                        failure = e;
                     }
-                } catch (SCSExpiredException e) {
+                    final SCSession decodedSession = session;
+                    final Throwable decodeFailure = failure;
+                    ctx.executor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            offload.inboundInFlight--;
+                            if (decodeFailure instanceof SCSRejectedException) {
+                                ReferenceCountUtil.release(request);
+                                if (ctx.channel().isActive()) {
+                                    try {
+                                        getLogger().debug("SCS decoding is shed, request {} is rejected.",
+                                                msg.getUri());
+                                        reject(ctx, msg, streamId, scsState, HttpResponseStatus.SERVICE_UNAVAILABLE);
+                                    } catch (Exception e) {
+                                        ctx.fireExceptionCaught(e);
+                                    }
+                                }
+                            }
+                            else if (decodeFailure != null) {
+                                ReferenceCountUtil.release(request);
+                                removePending(ctx, streamId, scsState);
+                                if (ctx.channel().isActive())
+                                    ctx.fireExceptionCaught(new DecoderException(decodeFailure));
+                            }
+                            else {
+                                final SCSContext previous = SCSContext.current();
+                                if (!excluded) {
+                                    scsState.setSession(bindToConnection(ctx, msg, scsService, decodedSession));
+                                    if (trustedHeader != null)
+                                        forwardTrusted(msg, scsService, scsState);
+                                    SCSContext.bind(SCSService.contextOf(request));
+                                }
+                                else if (trustedHeader != null) {
+                                    msg.headers().remove(TrustedHeader.NAME);
+                                }
+                                try {
+                                    ctx.fireChannelRead(request);
+                                    ctx.fireChannelReadComplete();
+                                } finally {
+                                    SCSContext.restore(previous);
+                                }
+                            }
+                        }
+                    });
                 }
-            }
+            });
+            return;
         }
-        final SCSFullHttpRequest request = new SCSFullHttpRequest(msg, state);
-        request.retain();
-        this.req = request;
+
+        if (excluded) {
+            getLogger().debug("request {} is excluded from SCS processing.", msg.getUri());
+            if (trustedHeader != null)
+                msg.headers().remove(TrustedHeader.NAME);
+            addPending(ctx, streamId, SCSState.EXCLUDED);
+            out.add(ReferenceCountUtil.retain(msg));
+            return;
+        }
+
+        final SCSession session;
+        try {
+            session = decodeState(scsService, cookieValue, false);
+        } catch (SCSRejectedException e) {
+            final SCSState rejected = new SCSState(scsService, null);
+            if (streamId == null)
+                addPending(ctx, null, rejected);
+            getLogger().debug("SCS decoding is shed, request {} is rejected.", msg.getUri());
+            reject(ctx, msg, streamId, rejected, HttpResponseStatus.SERVICE_UNAVAILABLE);
+            return;
+        }
+        final SCSState scsState = new SCSState(scsService, bindToConnection(ctx, msg, scsService, session));
+        if (trustedHeader != null)
+            forwardTrusted(msg, scsService, scsState);
+        addPending(ctx, streamId, scsState);
+        final SCSHttpRequest request = wrap(msg, scsState);
+        SCSContext.bind(SCSService.contextOf(request));
         out.add(request);
     }
 
-    private Cookie findCookie(final Set<Cookie> cookies, final String name) {
-        for (Cookie cookie : cookies) {
-            if (cookie.getName().equals(name))
-                return cookie;
+    /**
+     * Returns the offset of the path in the request URI, which may be in the absolute form.
+     */
+    private static int pathOffset(final String uri) {
+        if (uri.startsWith("/"))
+            return 0;
+        final int scheme = uri.indexOf("://");
+        if (scheme < 0)
+            return 0;
+        final int path = uri.indexOf('/', scheme + 3);
+        return (path < 0)?uri.length():path;
+    }
+
+    /**
+     * Returns the path of the request URI without the query string, as the servlet containers return it.
+     */
+    private static String requestPath(final String uri) {
+        final int offset = pathOffset(uri);
+        final int query = uri.indexOf('?', offset);
+        final String path = uri.substring(offset, (query < 0)?uri.length():query);
+        return path.isEmpty()?"/":path;
+    }
+
+    private static String findCookieValue(final HttpRequest msg, final String name, final boolean multiplexed) {
+        if (!multiplexed)
+            return CookieUtils.findCookieValue(msg.headers().get(COOKIE), name);
+        // an HTTP/1.x client sends one cookie header only, the HTTP/2 ones may send a field per cookie
+        for (String header : msg.headers().getAll(COOKIE)) {
+            final String value = CookieUtils.findCookieValue(header, name);
+            if (value != null)
+                return value;
         }
         return null;
     }
 
+    private static SCSHttpRequest wrap(final HttpRequest msg, final SCSState scsState) {
+        if (msg instanceof FullHttpRequest) {
+            // the decoder releases the original request after the decoding, the wrapper passed further owns it
+            ((FullHttpRequest) msg).retain();
+            return new SCSFullHttpRequest((FullHttpRequest) msg, scsState);
+        }
+        return new SCSHttpRequest(msg, scsState);
+    }
+
+    /**
+     * Binds the decoded session to the channel if the request upgrades the connection to WebSocket.
+     * @return - the decoded session state.
+     */
+    private static String bindToConnection(final ChannelHandlerContext ctx, final HttpRequest msg,
+                                           final SCSService scsService, final SCSession session) {
+        if (session == null)
+            return null;
+        if (HttpHeaders.Values.WEBSOCKET.equalsIgnoreCase(msg.headers().get(HttpHeaders.Names.UPGRADE))) {
+            ctx.channel().attr(SCSWebSocketSession.KEY).set(new SCSWebSocketSession(session.getData(),
+                    scsService.getExpiryTime(session), scsService.getClock()));
+            getLogger().debug("SCS [{}] is bound to the WebSocket connection {}.", session, ctx.channel());
+        }
+        return session.getData();
+    }
+
+    /**
+     * Decodes the SCS cookie. The event loop must never wait for a permit of the bulkhead, only the decodings
+     * offloaded to the crypto group may wait.
+     */
+    private SCSession decodeState(final SCSService scsService, final String cookieValue, final boolean mayWait)
+            throws SCSException {
+        if (cookieValue == null)
+            return null;
+        try {
+            final long start = System.nanoTime();
+            final SCSession session = mayWait?scsService.decode(cookieValue):
+                    scsService.decodeWithoutWaiting(cookieValue);
+            if (offloadPolicy != null)
+                offloadPolicy.record(DECODE, cookieValue.length(), System.nanoTime() - start);
+            getLogger().debug("SCS [{}] is extracted from request cookie.", session);
+            return session;
+        } catch (SCSExpiredException e) {
+            return null;
+        } catch (SCSRejectedException e) {
+            if (!scsService.isShedAsAbsent())
+                throw e;
+            getLogger().debug("SCS decoding is shed, the request is processed without session.");
+            return null;
+        }
+    }
+
+    /**
+     * Answers the request which SCS decoding is shed with 503 (Service Unavailable) or which tenant is refused with
+     * 404 (Not Found). The streams are answered at once. The pending state of an HTTP/1.x request is marked as
+     * rejected, and the response is written when its turn comes, see
+     * {@link #writeRejections(io.netty.channel.ChannelHandlerContext)}. The content of such a request is dropped till
+     * its end.
+     */
+    private void reject(final ChannelHandlerContext ctx, final HttpRequest msg, final String streamId,
+                        final SCSState scsState, final HttpResponseStatus status) throws Exception {
+        if (streamId != null) {
+            removePending(ctx, streamId, scsState);
+            final FullHttpResponse response = rejection(status);
+            response.headers().set(STREAM_ID, streamId);
+            ctx.writeAndFlush(response);
+            return;
+        }
+        if (!(msg instanceof LastHttpContent))
+            ctx.attr(DROP_CONTENT).set(Boolean.TRUE);
+        scsState.reject(status);
+        writeRejections(ctx);
+    }
+
+    /**
+     * Writes the responses to the rejected requests at the head of the pending ones, unless the response to
+     * an earlier request is still being written. Called when a request is rejected and when a response is finished.
+     */
+    private void writeRejections(final ChannelHandlerContext ctx) throws Exception {
+        final Queue<SCSState> pending = ctx.attr(PENDING_REQUESTS).get();
+        if (pending == null || pending.isEmpty() || !pending.peek().isRejected()
+                || ctx.attr(RESPONSE_OPEN).get() != null)
+            return;
+        // the response takes the rejected state from the head and writes the next rejection when it is finished
+        write(ctx, rejection(pending.peek().getRejection()), ctx.newPromise());
+    }
+
+    private static FullHttpResponse rejection(final HttpResponseStatus status) {
+        final FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+        HttpHeaders.setContentLength(response, 0);
+        return response;
+    }
+
+    /**
+     * Drops the content of a rejected request.
+     * @return - true if the message is dropped.
+     */
+    private static boolean dropContent(final ChannelHandlerContext ctx, final Object msg) {
+        if (!(msg instanceof HttpContent) || ctx.attr(DROP_CONTENT).get() == null)
+            return false;
+        if (msg instanceof LastHttpContent)
+            ctx.attr(DROP_CONTENT).remove();
+        ReferenceCountUtil.release(msg);
+        return true;
+    }
+
+    private ChannelOffload channelOffload(final ChannelHandlerContext ctx) {
+        if (cryptoGroup == null)
+            return null;
+        final Attribute<ChannelOffload> attr = ctx.attr(CHANNEL_OFFLOAD);
+        ChannelOffload offload = attr.get();
+        if (offload == null) {
+            offload = new ChannelOffload(cryptoGroup.next());
+            attr.set(offload);
+        }
+        return offload;
+    }
+
+    private static void addPending(final ChannelHandlerContext ctx, final String streamId, final SCSState scsState) {
+        if (streamId == null) {
+            final Attribute<Queue<SCSState>> attr = ctx.attr(PENDING_REQUESTS);
+            Queue<SCSState> pending = attr.get();
+            if (pending == null) {
+                pending = new ArrayDeque<SCSState>(2);
+                attr.set(pending);
+            }
+            pending.add(scsState);
+        }
+        else {
+            final Attribute<Map<String, SCSState>> attr = ctx.attr(PENDING_STREAMS);
+            Map<String, SCSState> pending = attr.get();
+            if (pending == null) {
+                pending = new HashMap<String, SCSState>();
+                attr.set(pending);
+            }
+            pending.put(streamId, scsState);
+        }
+    }
+
+    /**
+     * Removes the state of the request which decoding has failed. The pending states may already be dropped if
+     * the channel has become inactive while the decoding was offloaded.
+     */
+    private static void removePending(final ChannelHandlerContext ctx, final String streamId,
+                                      final SCSState scsState) {
+        if (streamId == null) {
+            final Queue<SCSState> pending = ctx.attr(PENDING_REQUESTS).get();
+            if (pending != null)
+                pending.remove(scsState);
+        }
+        else {
+            final Map<String, SCSState> pending = ctx.attr(PENDING_STREAMS).get();
+            if (pending != null)
+                pending.remove(streamId);
+        }
+    }
+
+    private static SCSState pollPending(final ChannelHandlerContext ctx, final HttpResponse response,
+                                        final boolean http2) {
+        if (response.getStatus().code() < 200)
+            return null;
+        final String streamId = http2?response.headers().get(STREAM_ID):null;
+        final SCSState req;
+        if (streamId == null) {
+            final Queue<SCSState> pending = ctx.attr(PENDING_REQUESTS).get();
+            req = (pending != null)?pending.poll():null;
+        }
+        else {
+            final Map<String, SCSState> pending = ctx.attr(PENDING_STREAMS).get();
+            req = (pending != null)?pending.remove(streamId):null;
+        }
+        if (req == null)
+            getLogger().debug("there is no pending request for the response, SCS cookie is not set.");
+        return req;
+    }
+
     @Override
     public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
         super.handlerRemoved(ctx);
-        this.req = null;
+        ctx.attr(PENDING_REQUESTS).remove();
+        ctx.attr(PENDING_STREAMS).remove();
+        ctx.attr(RESPONSE_OPEN).remove();
+        ctx.attr(DROP_CONTENT).remove();
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         super.channelInactive(ctx);
-        this.req = null;
+        ctx.attr(PENDING_REQUESTS).remove();
+        ctx.attr(PENDING_STREAMS).remove();
+        ctx.attr(RESPONSE_OPEN).remove();
+        ctx.attr(DROP_CONTENT).remove();
     }
 
     @Override
@@ -169,4 +712,99 @@ public class SCSHandler extends MessageToMessageDecoder<FullHttpRequest> impleme
         ctx.flush();
     }
 
+    /**
+     * The builder of {@link com.identityblitz.scs.glue.netty.http.SCSHandler}. If neither the service nor the tenant
+     * registry is set, the default service is used.
+     */
+    public static final class Builder {
+        private SCSService scsService;
+        private TenantRegistry tenants;
+        private TenantResolver<HttpRequest> tenantResolver;
+        private EventExecutorGroup cryptoGroup;
+        private OffloadPolicy offloadPolicy;
+        private TrustedHeader trustedHeader;
+        private boolean http2;
+
+        private Builder() {}
+
+        public Builder service(final SCSService scsService) {
+            this.scsService = scsService;
+            return this;
+        }
+
+        /**
+         * Sets the multi-tenant mode. For each request the SCS service of the tenant determined by the passed resolver
+         * is used.
+         * @param tenants - registry of the tenant services.
+         * @param tenantResolver - tenant resolver, see
+         *                       {@link com.identityblitz.scs.glue.netty.http.NettyTenantResolvers}.
+         * @return - this builder.
+         */
+        public Builder tenants(final TenantRegistry tenants, final TenantResolver<HttpRequest> tenantResolver) {
+            this.tenants = tenants;
+            this.tenantResolver = tenantResolver;
+            return this;
+        }
+
+        /**
+         * Makes the handler to run the expensive encoding and decoding of SCS on the passed executor group instead of
+         * the I/O event loop. Each channel is bound to one executor of the group and while an operation of the channel
+         * is in flight, the subsequent requests and responses of the channel wait for it, so the order is preserved.
+         * @param cryptoGroup - executor group to run the expensive operations.
+         * @param offloadPolicy - policy deciding which operations are expensive.
+         * @return - this builder.
+         */
+        public Builder offload(final EventExecutorGroup cryptoGroup, final OffloadPolicy offloadPolicy) {
+            this.cryptoGroup = cryptoGroup;
+            this.offloadPolicy = offloadPolicy;
+            return this;
+        }
+
+        /**
+         * Makes the handler to forward the verified session state to the services behind the gateway in the trusted
+         * header instead of the SCS cookie. The SCS cookie is removed from the request and the trusted header sent by
+         * the client, if any, is overwritten. The trusted header of the response is removed and the state it carries
+         * replaces the state of the request before the SCS cookie is encoded. If the service clears the state the request
+         * was sent with, the SCS cookie is expired.
+         * @param trustedHeader - codec of the trusted header shared with the services.
+         * @return - this builder.
+         */
+        public Builder forwardTrusted(final TrustedHeader trustedHeader) {
+            this.trustedHeader = trustedHeader;
+            return this;
+        }
+
+        /**
+         * Makes the handler to match the requests and the responses by the HTTP/2 stream identifier carried in
+         * the <b>x-http2-stream-id</b> header. Must be set only if the handler is placed after the translation of
+         * the HTTP/2 frames to HTTP/1.x messages, which sets the header.
+         * @param http2 - true if the channel carries HTTP/2 streams translated to HTTP/1.x messages.
+         * @return - this builder.
+         */
+        public Builder http2(final boolean http2) {
+            this.http2 = http2;
+            return this;
+        }
+
+        public SCSHandler build() {
+            if (tenants != null && scsService != null)
+                throw new IllegalStateException("either the service or the tenant registry must be set");
+            return new SCSHandler((tenants == null && scsService == null)?SCSService.getDefault():scsService,
+                    tenants, tenantResolver, cryptoGroup, offloadPolicy, trustedHeader, http2);
+        }
+    }
+
+    /**
+     * The offloading state of a channel. It is accessed only from the event loop of the channel.
+     */
+    private static final class ChannelOffload {
+        private final EventExecutor executor;
+        private int inboundInFlight;
+        private int outboundInFlight;
+
+        private ChannelOffload(final EventExecutor executor) {
+            this.executor = executor;
+        }
+    }
+
 }
@@ -0,0 +1,89 @@
+package com.identityblitz.scs.glue.netty.http;
+
+import io.netty.handler.codec.DecoderResult;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * The request head passed by {@link com.identityblitz.scs.glue.netty.http.SCSHandler} to the next handlers when
+ * the requests are not aggregated. It is a thin wrapper delegating all calls to the original request and carrying
+ * the SCS state of the request. The content of the request follows it as is.
+ */
+public class SCSHttpRequest implements HttpRequest {
+    private final HttpRequest request;
+    private final SCSState state;
+
+    SCSHttpRequest(final HttpRequest request, final SCSState state) {
+        this.request = request;
+        this.state = state;
+    }
+
+    SCSState getState() {
+        return state;
+    }
+
+    public String getSCS() {
+        return state.getSession();
+    }
+
+    public void changeSCS(String session) {
+        if(state.getSCSService().isVerifyOnly())
+            throw new IllegalStateException("SCS can't be changed in the verify-only mode");
+        state.setSession(session);
+    }
+
+    @Override
+    public HttpRequest setProtocolVersion(HttpVersion version) {
+        request.setProtocolVersion(version);
+        return this;
+    }
+
+    @Override
+    public HttpRequest setMethod(HttpMethod method) {
+        request.setMethod(method);
+        return this;
+    }
+
+    @Override
+    public HttpRequest setUri(String uri) {
+        request.setUri(uri);
+        return this;
+    }
+
+    @Override
+    public HttpMethod getMethod() {
+        return request.getMethod();
+    }
+
+    @Override
+    public String getUri() {
+        return request.getUri();
+    }
+
+    @Override
+    public HttpVersion getProtocolVersion() {
+        return request.getProtocolVersion();
+    }
+
+    @Override
+    public HttpHeaders headers() {
+        return request.headers();
+    }
+
+    @Override
+    public DecoderResult getDecoderResult() {
+        return request.getDecoderResult();
+    }
+
+    @Override
+    public void setDecoderResult(DecoderResult result) {
+        request.setDecoderResult(result);
+    }
+
+    @Override
+    public String toString() {
+        return request.toString();
+    }
+}
@@ -0,0 +1,71 @@
+package com.identityblitz.scs.glue.netty.http;
+
+import com.identityblitz.scs.SCSService;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * The SCS state of a request: the current session state and the service used to decode and to encode it.
+ */
+final class SCSState {
+    /**
+     * The state of the requests excluded from SCS processing. It keeps the place of such a request among the pending
+     * ones, so the responses are still matched with the right requests.
+     */
+    static final SCSState EXCLUDED = new SCSState(null, null);
+
+    private final SCSService scsService;
+    private String session;
+    private String method;
+    private String path;
+    private HttpResponseStatus rejection;
+
+    SCSState(final SCSService scsService, final String session) {
+        this.scsService = scsService;
+        this.session = session;
+    }
+
+    SCSService getSCSService() {
+        return scsService;
+    }
+
+    String getSession() {
+        return session;
+    }
+
+    void setSession(final String session) {
+        this.session = session;
+    }
+
+    /**
+     * Keeps the method and the path of the request the trusted header is forwarded for, the header returned in
+     * the response is verified against them.
+     */
+    void setRequest(final String method, final String path) {
+        this.method = method;
+        this.path = path;
+    }
+
+    /**
+     * Marks the request as answered by the handler itself, with 503 (Service Unavailable) if its SCS decoding is shed
+     * or with 404 (Not Found) if its tenant is refused by the registry.
+     */
+    void reject(final HttpResponseStatus rejection) {
+        this.rejection = rejection;
+    }
+
+    boolean isRejected() {
+        return rejection != null;
+    }
+
+    HttpResponseStatus getRejection() {
+        return rejection;
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    String getPath() {
+        return path;
+    }
+}
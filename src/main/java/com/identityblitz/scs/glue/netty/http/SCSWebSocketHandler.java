@@ -0,0 +1,42 @@
+package com.identityblitz.scs.glue.netty.http;
+
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+
+import static com.identityblitz.scs.LoggingUtils.getLogger;
+
+/**
+ * This Netty handler checks the session bound to a WebSocket connection by
+ * {@link com.identityblitz.scs.glue.netty.http.SCSHandler} on each received frame. The check only compares the expiry
+ * time of the session with the current time, the SCS cookie is not verified again. When the session expires
+ * the handler drops the received frames, sends the close frame with the status 1008 (policy violation) and closes
+ * the connection. The connections upgraded without a valid SCS cookie are not checked.
+ * The handler should be inserted into the pipeline after
+ * {@link io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler}. It is sharable.
+ */
+@ChannelHandler.Sharable
+public class SCSWebSocketHandler extends ChannelInboundHandlerAdapter {
+    private static final int POLICY_VIOLATION = 1008;
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+        final SCSWebSocketSession session;
+        if (msg instanceof WebSocketFrame && (session = ctx.channel().attr(SCSWebSocketSession.KEY).get()) != null
+                && session.isExpired()) {
+            ReferenceCountUtil.release(msg);
+            if (!session.isClosing()) {
+                session.setClosing();
+                getLogger().debug("SCS bound to the WebSocket connection {} is expired, closing it.", ctx.channel());
+                ctx.writeAndFlush(new CloseWebSocketFrame(POLICY_VIOLATION, "SCS expired"))
+                        .addListener(ChannelFutureListener.CLOSE);
+            }
+            return;
+        }
+        ctx.fireChannelRead(msg);
+    }
+}
@@ -0,0 +1,75 @@
+package com.identityblitz.scs.glue.netty.http;
+
+import com.identityblitz.scs.Clock;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * The session state bound to a WebSocket connection. {@link com.identityblitz.scs.glue.netty.http.SCSHandler}
+ * verifies the SCS cookie of the upgrade request once and binds the decoded state together with its expiry time to
+ * the channel, so the messages of the connection are checked only by comparing the expiry time with the current time.
+ * See {@link com.identityblitz.scs.glue.netty.http.SCSWebSocketHandler} for the check.
+ */
+public final class SCSWebSocketSession {
+    static final AttributeKey<SCSWebSocketSession> KEY = AttributeKey.valueOf("com.identityblitz.scs.webSocketSession");
+
+    private final String session;
+    private final long expiryTime;
+    private final Clock clock;
+    private boolean closing;
+
+    SCSWebSocketSession(final String session, final long expiryTime, final Clock clock) {
+        this.session = session;
+        this.expiryTime = expiryTime;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the session bound to the passed channel.
+     * @param channel - channel of the WebSocket connection.
+     * @return - the session or null if the connection has not been upgraded with a valid SCS cookie.
+     */
+    public static SCSWebSocketSession get(final Channel channel) {
+        return channel.attr(KEY).get();
+    }
+
+    /**
+     * Returns the session state decoded from the SCS cookie of the upgrade request.
+     * @return - session state.
+     */
+    public String getSCS() {
+        return session;
+    }
+
+    /**
+     * Returns the time the session expires at.
+     * @return - expiry time in milliseconds since the epoch.
+     */
+    public long getExpiryTime() {
+        return expiryTime;
+    }
+
+    /**
+     * Checks whether the session is expired. Only the expiry time is compared with the current time.
+     * @return - true if the session is expired.
+     */
+    public boolean isExpired() {
+        return clock.currentTimeMillis() > expiryTime;
+    }
+
+    boolean isClosing() {
+        return closing;
+    }
+
+    void setClosing() {
+        this.closing = true;
+    }
+
+    @Override
+    public String toString() {
+        return "SCSWebSocketSession{" +
+                "session='" + session + '\'' +
+                ", expiryTime=" + expiryTime +
+                '}';
+    }
+}
@@ -1,16 +1,20 @@
 package com.identityblitz.scs.glue.play;
 
-import com.identityblitz.scs.ConfigParameter;
+import com.identityblitz.scs.SCSContext;
 import com.identityblitz.scs.SCSService;
 import com.identityblitz.scs.SCSession;
+import com.identityblitz.scs.TrustedHeader;
 import com.identityblitz.scs.error.SCSExpiredException;
+import com.identityblitz.scs.error.SCSRejectedException;
+import com.identityblitz.scs.service.ServiceProvider;
 import play.libs.F;
 import play.mvc.Action;
 import play.mvc.Http;
 import play.mvc.Result;
+import play.mvc.Results;
+import scala.concurrent.ExecutionContext;
 
 import static com.identityblitz.scs.LoggingUtils.getLogger;
-import static com.identityblitz.scs.service.ServiceProvider.service;
 
 /**
  * This Play framework action allows to add Secure Cookie Session (SCS) functionality to
@@ -18,52 +22,157 @@ import static com.identityblitz.scs.service.ServiceProvider.service;
  * To get current session state it is necessary to use the function
  * {@link com.identityblitz.scs.SCSService#getSCS(Object)}
  * and to change the current session state - the function
- * {@link com.identityblitz.scs.SCSService#changeSCS(Object, String)}.
+ * {@link com.identityblitz.scs.SCSService#changeSCS(Object, String)}. While the delegate is called, the session state
+ * is also available through {@link com.identityblitz.scs.SCSContext#current()}, the code run later on other threads
+ * has to carry the context with {@link com.identityblitz.scs.SCSContext#wrap(Runnable)}.
  * The filter has only one boolean option to configure <b>com.blitz.scs.useCompression</b>. This option turns off/on
  * using of compression session state. Default value is not to use compression.
+ * The requests excluded by the rules of the service (see
+ * {@link com.identityblitz.scs.SCSService#isExcluded(String, String, int)}) are passed to the delegate as is.
+ * The session state is stored when the result promise of the delegate is redeemed, so asynchronous actions may change
+ * it until they produce the result. The encoding runs on the passed execution context or on
+ * {@link com.identityblitz.scs.glue.play.SCSExecution#defaultContext()}. If the state
+ * is not changed and the received SCS is fresh (see {@link com.identityblitz.scs.SCSService#isFresh(SCSession)}),
+ * the cookie is not set again.
+ * If the service is in the verify-only mode (see {@link com.identityblitz.scs.SCSService#isVerifyOnly()}), the result
+ * of the delegate is returned as is and the session state can't be changed.
+ * Behind a gateway verifying SCS, the action created with a {@link com.identityblitz.scs.TrustedHeader} takes
+ * the session state from the trusted header of the request instead of the SCS cookie and returns the changed session
+ * state in the same response header, the gateway sets the SCS cookie. The action created with the default
+ * constructor accepts the header if the key <b>com.identityblitz.scs.trustedHeader.key</b> is configured.
+ * If the SCS decoding is shed by the bulkhead of the service (see {@link com.identityblitz.scs.Bulkhead}), the request
+ * is processed as if it had no SCS cookie or answered with 503 (Service Unavailable) according to the fallback of
+ * the bulkhead.
  */
 public class SCSAction extends Action.Simple {
-    private static final String SCS_COOKIE_NAME = service().getConfiguration()
-            .getString(ConfigParameter.SCS_COOKIE_NAME.key(), "SCS");
-    private static final String DOMAIN = service().getConfiguration()
-            .getString(ConfigParameter.DOMAIN.key());
-    private static final boolean IS_SECURE = service().getConfiguration()
-            .getBoolean(ConfigParameter.IS_SECURE.key(), false);
-    private static final String PATH = service().getConfiguration()
-            .getString(ConfigParameter.PATH.key(), "/");
+    private final SCSService scsService;
+    private final ExecutionContext encodingContext;
+    private final TrustedHeader trustedHeader;
 
-    private static final SCSService scsService;
-    static {
-        scsService = new SCSService();
-        scsService.init(service().getConfiguration()
-                .getBoolean(ConfigParameter.USE_COMPRESSION.key(), false), null);
+    public SCSAction() {
+        this(SCSService.getDefault(), null,
+                TrustedHeader.fromConfiguration(ServiceProvider.INSTANCE.getConfiguration()));
+    }
+
+    public SCSAction(final SCSService scsService) {
+        this(scsService, null);
+    }
+
+    /**
+     * Creates the action encoding SCS on the passed execution context.
+     * @param scsService - SCS service.
+     * @param encodingContext - execution context to encode SCS on, if null the default one is used.
+     */
+    public SCSAction(final SCSService scsService, final ExecutionContext encodingContext) {
+        this(scsService, encodingContext, null);
+    }
+
+    /**
+     * Creates the action accepting the session state verified by the gateway in the trusted header. The requests
+     * without the header are still processed with the SCS cookie.
+     * @param scsService - SCS service.
+     * @param encodingContext - execution context to encode SCS on, if null the default one is used.
+     * @param trustedHeader - codec of the trusted header shared with the gateway, may be null.
+     */
+    public SCSAction(final SCSService scsService, final ExecutionContext encodingContext,
+                     final TrustedHeader trustedHeader) {
+        this.scsService = scsService;
+        this.encodingContext = encodingContext;
+        this.trustedHeader = trustedHeader;
     }
 
     @Override
-    public F.Promise<Result> call(Http.Context ctx) throws Throwable {
-        final Http.Cookie scsCookie = ctx.request().cookie(SCS_COOKIE_NAME);
+    public F.Promise<Result> call(final Http.Context ctx) throws Throwable {
+        if(scsService.isExcluded(ctx.request().method(), ctx.request().path(), 0)) {
+            getLogger().debug("Request {} is excluded from SCS processing.", ctx.request().path());
+            return delegate.call(ctx);
+        }
+        final String trustedValue = (trustedHeader != null)?ctx.request().getHeader(TrustedHeader.NAME):null;
+        if(trustedValue != null)
+            return callTrusted(ctx, trustedHeader.decodeRequest(ctx.request().method(), ctx.request().path(),
+                    trustedValue));
+        final Http.Cookie scsCookie = ctx.request().cookie(scsService.getCookieName());
+        SCSession received = null;
+        boolean hadCookie = scsCookie != null;
         if(scsCookie != null) {
             try {
-                final SCSession session = scsService.decode(scsCookie.value());
-                getLogger().debug("SCS [{}] is extracted from request cookie.", session);
-                SCSService.changeSCS(ctx, session.getData());
+                received = scsService.decode(scsCookie.value());
+                getLogger().debug("SCS [{}] is extracted from request cookie.", received);
+                SCSService.changeSCS(ctx, received.getData());
             }
             catch(SCSExpiredException e) {}
+            catch(SCSRejectedException e) {
+                if(!scsService.isShedAsAbsent()) {
+                    getLogger().debug("SCS decoding is shed, request {} is rejected.", ctx.request().path());
+                    return F.Promise.pure((Result)Results.status(503));
+                }
+                getLogger().debug("SCS decoding is shed, request {} is processed without session.",
+                        ctx.request().path());
+                hadCookie = false;
+            }
+        }
+        if(scsService.isVerifyOnly()) {
+            ctx.args.put(SCSService.VERIFY_ONLY_ATTRIBUTE_NAME, Boolean.TRUE);
+            return callDelegate(ctx);
+        }
+        final SCSession receivedSession = received;
+        final boolean hadSCSCookie = hadCookie;
+        return callDelegate(ctx).map(new F.Function<Result, Result>() {
+            @Override
+            public Result apply(final Result result) throws Throwable {
+                storeState(ctx, hadSCSCookie, receivedSession);
+                return result;
+            }
+        }, (encodingContext != null)?encodingContext:SCSExecution.defaultContext());
+    }
+
+    private F.Promise<Result> callDelegate(final Http.Context ctx) throws Throwable {
+        final SCSContext previous = SCSContext.bind(SCSService.contextOf(ctx));
+        try {
+            return delegate.call(ctx);
+        } finally {
+            SCSContext.restore(previous);
+        }
+    }
+
+    private F.Promise<Result> callTrusted(final Http.Context ctx, final String trustedState) throws Throwable {
+        getLogger().debug("Session state is accepted from the trusted header.");
+        SCSService.changeSCS(ctx, trustedState);
+        if(scsService.isVerifyOnly()) {
+            ctx.args.put(SCSService.VERIFY_ONLY_ATTRIBUTE_NAME, Boolean.TRUE);
+            return callDelegate(ctx);
         }
-        final F.Promise<Result> resultPromise = delegate.call(ctx);
+        return callDelegate(ctx).map(new F.Function<Result, Result>() {
+            @Override
+            public Result apply(final Result result) throws Throwable {
+                final String state = SCSService.getSCS(ctx);
+                if((state == null)?trustedState != null:!state.equals(trustedState)) {
+                    getLogger().debug("Changed session state is returned in the trusted header.");
+                    ctx.response().setHeader(TrustedHeader.NAME,
+                            trustedHeader.encodeResponse(ctx.request().method(), ctx.request().path(), state));
+                }
+                return result;
+            }
+        }, (encodingContext != null)?encodingContext:SCSExecution.defaultContext());
+    }
 
+    private void storeState(final Http.Context ctx, final boolean hadCookie, final SCSession received)
+            throws Throwable {
         final String state = SCSService.getSCS(ctx);
         if(state != null) {
+            if(received != null && state.equals(received.getData()) && scsService.isFresh(received)) {
+                getLogger().debug("session state is not changed, SCS cookie is kept.");
+                return;
+            }
             final SCSession session = scsService.encode(state);
             getLogger().debug("session state is stored into SCS cookie {}.", session);
-            ctx.response().setCookie(SCS_COOKIE_NAME, session.asString(), null, PATH, DOMAIN, IS_SECURE, true);
+            ctx.response().setCookie(scsService.getCookieName(), session.asString(), null, scsService.getPath(),
+                    scsService.getDomain(), scsService.isSecure(), true);
         }
-        else {
+        else if(hadCookie) {
             getLogger().debug("there is no session state to store in SCS cookie.");
-            ctx.response().discardCookie(SCS_COOKIE_NAME);
+            ctx.response().discardCookie(scsService.getCookieName());
         }
-
-        return resultPromise;
     }
 
 }
@@ -0,0 +1,52 @@
+package com.identityblitz.scs.glue.play;
+
+import com.identityblitz.scs.ConfigParameter;
+import com.identityblitz.scs.service.ServiceProvider;
+import play.libs.Akka;
+import scala.concurrent.ExecutionContext;
+
+import static com.identityblitz.scs.LoggingUtils.getLogger;
+
+/**
+ * The execution context the Play glue runs the SCS cryptographic operations on by default. It is the Akka dispatcher
+ * named by the option <b>com.identityblitz.scs.play.dispatcher</b> or, if the option is not set, the context running
+ * the operations on the calling thread, which is enough as the operations take microseconds. The calling thread of
+ * the filter may be a Netty I/O thread, so the decodings run on that context never wait for a permit of the bulkhead
+ * (see {@link #mayWait(scala.concurrent.ExecutionContext)}).
+ */
+public final class SCSExecution {
+
+    private SCSExecution() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns the default execution context for the SCS cryptographic operations.
+     * @return - execution context.
+     */
+    public static ExecutionContext defaultContext() {
+        return DefaultContextHolder.CONTEXT;
+    }
+
+    /**
+     * Tells if the SCS decodings run on the passed context may wait for a permit of the bulkhead. They may not if
+     * the context runs them on the calling thread.
+     * @param context - execution context the decodings are run on.
+     * @return - true if the decodings may wait.
+     */
+    public static boolean mayWait(final ExecutionContext context) {
+        return context != play.api.libs.iteratee.Execution.trampoline();
+    }
+
+    private static final class DefaultContextHolder {
+        private static final ExecutionContext CONTEXT = lookup(ServiceProvider.INSTANCE.getConfiguration()
+                .getString(ConfigParameter.PLAY_DISPATCHER.key()));
+
+        private static ExecutionContext lookup(final String dispatcher) {
+            if(dispatcher == null)
+                return play.api.libs.iteratee.Execution.trampoline();
+            getLogger().debug("SCS is encoded on the dispatcher {}.", dispatcher);
+            return Akka.system().dispatchers().lookup(dispatcher);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.identityblitz.scs.glue.play;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The session states of the requests being processed by {@link com.identityblitz.scs.glue.play.SCSFilter}. Play 2.3
+ * request headers can carry only string tags, so the mutable state is kept here by the request identifier, which is
+ * the same for the Scala request header and the Java HTTP context of the request. An entry lives from the moment
+ * the filter decodes the SCS cookie till the result of the request is produced.
+ * If the client aborts the request before its body is consumed, the result is never produced. So the entries refer
+ * to the states weakly and the only strong reference is held by the processing of the request: when the aborted
+ * processing is collected, its entry is dropped on the next registration.
+ */
+public final class SCSRequestStates {
+    private static final ConcurrentMap<Long, StateReference> STATES = new ConcurrentHashMap<Long, StateReference>();
+    private static final ReferenceQueue<AtomicReference<String>> COLLECTED =
+            new ReferenceQueue<AtomicReference<String>>();
+
+    private SCSRequestStates() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns the state holder of the request.
+     * @param requestId - request identifier.
+     * @return - state holder or null if the request is not processed by the filter.
+     */
+    public static AtomicReference<String> get(final long requestId) {
+        final StateReference reference = STATES.get(requestId);
+        return (reference == null)?null:reference.get();
+    }
+
+    /**
+     * Changes the state of the request.
+     * @param requestId - request identifier.
+     * @param state - new state.
+     * @return - false if the request is not processed by the filter.
+     * @throws IllegalStateException - if the request is processed in the verify-only mode.
+     */
+    public static boolean change(final long requestId, final String state) {
+        final AtomicReference<String> holder = get(requestId);
+        if(holder == null)
+            return false;
+        if(holder instanceof ReadOnlyState)
+            throw new IllegalStateException("SCS can't be changed in the verify-only mode");
+        holder.set(state);
+        return true;
+    }
+
+    /**
+     * Registers the state of the request. The caller must keep the returned holder till the request is processed,
+     * as the entry is dropped once the holder is collected.
+     */
+    static AtomicReference<String> register(final long requestId, final String state, final boolean readOnly) {
+        expunge();
+        final AtomicReference<String> holder = readOnly?new ReadOnlyState(state):new AtomicReference<String>(state);
+        STATES.put(requestId, new StateReference(requestId, holder));
+        return holder;
+    }
+
+    static void remove(final long requestId) {
+        STATES.remove(requestId);
+    }
+
+    static int size() {
+        return STATES.size();
+    }
+
+    private static void expunge() {
+        StateReference reference;
+        while((reference = (StateReference) COLLECTED.poll()) != null) {
+            STATES.remove(reference.requestId, reference);
+        }
+    }
+
+    private static final class StateReference extends WeakReference<AtomicReference<String>> {
+        private final long requestId;
+
+        private StateReference(final long requestId, final AtomicReference<String> holder) {
+            super(holder, COLLECTED);
+            this.requestId = requestId;
+        }
+    }
+
+    /**
+     * The state of the request processed in the verify-only mode, it is not changed by
+     * {@link #change(long, String)}.
+     */
+    private static final class ReadOnlyState extends AtomicReference<String> {
+        private ReadOnlyState(final String state) {
+            super(state);
+        }
+    }
+}
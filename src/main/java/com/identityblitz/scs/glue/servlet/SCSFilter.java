@@ -1,15 +1,19 @@
 package com.identityblitz.scs.glue.servlet;
 
-import com.identityblitz.scs.ConfigParameter;
+import com.identityblitz.scs.SCSContext;
 import com.identityblitz.scs.SCSService;
 import com.identityblitz.scs.SCSession;
+import com.identityblitz.scs.TrustedHeader;
+import com.identityblitz.scs.service.ServiceProvider;
 import com.identityblitz.scs.error.SCSException;
 import com.identityblitz.scs.error.SCSExpiredException;
-import com.identityblitz.scs.service.ServiceProvider;
+import com.identityblitz.scs.error.SCSRejectedException;
+import com.identityblitz.scs.tenant.TenantRegistry;
+import com.identityblitz.scs.tenant.TenantResolver;
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpServletResponseWrapper;
 import java.io.IOException;
 
 import static com.identityblitz.scs.LoggingUtils.getLogger;
@@ -20,43 +24,179 @@ import static com.identityblitz.scs.LoggingUtils.getLogger;
  * To get current session state it is necessary to use the function
  * {@link com.identityblitz.scs.SCSService#getSCS(Object)}
  * and to change the current session state - the function
- * {@link com.identityblitz.scs.SCSService#changeSCS(Object, String)}.
+ * {@link com.identityblitz.scs.SCSService#changeSCS(Object, String)}. While the filter chain is called, the session
+ * state is also available through {@link com.identityblitz.scs.SCSContext#current()}.
  * The filter has only one boolean option to configure <b>com.blitz.scs.useCompression</b>. This option turns off/on
- * using of compression session state. Default value is not to use compression.
+ * using of compression session state. Default value is not to use compression. The option is ignored if the filter
+ * is created with an explicitly built {@link com.identityblitz.scs.SCSService}.
+ * The filter supports asynchronous processing. If the request is put into the asynchronous mode, the SCS cookie is
+ * not set when the filter chain returns but when {@link javax.servlet.AsyncContext#complete()} is called, so
+ * the session state changed on any container or application thread is stored. If the asynchronous processing ends
+ * with {@link javax.servlet.AsyncContext#dispatch()}, the cookie is set by the filter after the dispatch, so
+ * the filter has to be mapped for the ASYNC dispatcher type too.
+ * SCS is decoded and encoded once per request. The FORWARD and INCLUDE dispatches nested into the processing of
+ * the request are passed through, the cookie (or the expired cookie if there is no session state) is set only once,
+ * either at the first commit point of the response or when the outermost dispatch is finished.
+ * The requests excluded by the rules of the service (see
+ * {@link com.identityblitz.scs.SCSService#isExcluded(String, String, int)}) are passed as is, the paths are matched
+ * without the context path.
+ * If the service is in the verify-only mode (see {@link com.identityblitz.scs.SCSService#isVerifyOnly()}), the cookie
+ * is only decoded, the response is passed as is and the session state can't be changed.
+ * Behind a gateway verifying SCS (see {@link #acceptTrusted(com.identityblitz.scs.TrustedHeader)}), the session state
+ * is taken from the {@link com.identityblitz.scs.TrustedHeader} of the request instead of the SCS cookie and
+ * the changed session state is returned in the same response header, the gateway sets the SCS cookie. The filter
+ * created by the container accepts the header if the key <b>com.identityblitz.scs.trustedHeader.key</b> is configured.
+ * If the SCS decoding is shed by the bulkhead of the service (see {@link com.identityblitz.scs.Bulkhead}), the request
+ * is processed as if it had no SCS cookie or answered with 503 (Service Unavailable) according to the fallback of
+ * the bulkhead.
  */
 public class SCSFilter implements Filter {
-    private SCSService scsService = new SCSService();
+    private static final String RESPONSE_ATTRIBUTE = "com.identityblitz.scs.glue.servlet.response";
+    private SCSService scsService;
+    private TenantRegistry tenants;
+    private TenantResolver<HttpServletRequest> tenantResolver;
+    private TrustedHeader trustedHeader;
+
+    public SCSFilter() {}
+
+    /**
+     * Creates the filter using the passed service instead of the default one. It is intended for containers
+     * supporting programmatic registration of filters.
+     * @param scsService - SCS service.
+     */
+    public SCSFilter(final SCSService scsService) {
+        this.scsService = scsService;
+    }
+
+    /**
+     * Creates the filter in the multi-tenant mode. For each request the SCS service of the tenant determined by
+     * the passed resolver is used, the requests of the tenants refused by the registry are answered with 404
+     * (Not Found).
+     * @param tenants - registry of the tenant services.
+     * @param tenantResolver - tenant resolver, see {@link com.identityblitz.scs.glue.servlet.ServletTenantResolvers}.
+     */
+    public SCSFilter(final TenantRegistry tenants, final TenantResolver<HttpServletRequest> tenantResolver) {
+        this.tenants = tenants;
+        this.tenantResolver = tenantResolver;
+    }
+
+    /**
+     * Makes the filter to accept the session state verified by the gateway in the trusted header. The requests
+     * without the header are still processed with the SCS cookie.
+     * @param trustedHeader - codec of the trusted header shared with the gateway.
+     * @return - this filter.
+     */
+    public SCSFilter acceptTrusted(final TrustedHeader trustedHeader) {
+        this.trustedHeader = trustedHeader;
+        return this;
+    }
 
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
-        final boolean useCompression =
-                ServiceProvider.INSTANCE.getConfiguration().getBoolean(ConfigParameter.USE_COMPRESSION.key(), false);
-        scsService.init(useCompression, null);
+        if(scsService == null && tenants == null) {
+            scsService = SCSService.getDefault();
+            if(trustedHeader == null) {
+                trustedHeader = TrustedHeader.fromConfiguration(ServiceProvider.INSTANCE.getConfiguration());
+            }
+        }
     }
 
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
             throws IOException, ServletException {
+        final ScsHttpServletResponse current = (ScsHttpServletResponse)request.getAttribute(RESPONSE_ATTRIBUTE);
+        if(current != null) {
+            // the dispatch is nested into the one which has already decoded SCS and will encode it
+            doChain(chain, request, response, (HttpServletRequest)request);
+            if(request.getDispatcherType() == DispatcherType.ASYNC && !request.isAsyncStarted()) {
+                request.removeAttribute(RESPONSE_ATTRIBUTE);
+                finish(current);
+            }
+            return;
+        }
+
         final HttpServletRequest httpRequest = (HttpServletRequest)request;
-        if(httpRequest.getDispatcherType() == DispatcherType.REQUEST) {
+        final SCSService scsService = (tenants == null)?this.scsService:
+                tenants.getService(tenantResolver.resolveTenant(httpRequest));
+        if(scsService == null) {
+            getLogger().debug("Tenant of request {} is refused.", httpRequest.getRequestURI());
+            ((HttpServletResponse)response).sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if(scsService.isExcluded(httpRequest.getMethod(), httpRequest.getRequestURI(),
+                httpRequest.getContextPath().length())) {
+            getLogger().debug("Request {} is excluded from SCS processing.", httpRequest.getRequestURI());
+            chain.doFilter(request, response);
+            return;
+        }
+        final String trustedValue = (trustedHeader != null)?httpRequest.getHeader(TrustedHeader.NAME):null;
+        String trustedState = null;
+        boolean shed = false;
+        if(trustedValue != null) {
+            try {
+                trustedState = trustedHeader.decodeRequest(httpRequest.getMethod(), httpRequest.getRequestURI(),
+                        trustedValue);
+                SCSService.changeSCS(httpRequest, trustedState);
+                getLogger().debug("Session state is accepted from the trusted header.");
+            } catch (SCSException e) {
+                throw new ServletException(e);
+            }
+        }
+        else if(httpRequest.getDispatcherType() == DispatcherType.REQUEST) {
             try {
                 final SCSession session = scsService.extractFromUpstream(httpRequest);
                 getLogger().debug("Session extracted from upstream: {}.", session);
             } catch (SCSExpiredException e) {
+            } catch (SCSRejectedException e) {
+                if(!scsService.isShedAsAbsent()) {
+                    getLogger().debug("SCS decoding is shed, request {} is rejected.", httpRequest.getRequestURI());
+                    ((HttpServletResponse)response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    return;
+                }
+                getLogger().debug("SCS decoding is shed, request {} is processed without session.",
+                        httpRequest.getRequestURI());
+                shed = true;
             } catch (SCSException e) {
                 throw new ServletException(e);
             }
         }
-        chain.doFilter(request, new ScsHttpServletResponse((HttpServletResponse)response, httpRequest, scsService));
+        if(scsService.isVerifyOnly()) {
+            request.setAttribute(SCSService.VERIFY_ONLY_ATTRIBUTE_NAME, Boolean.TRUE);
+            doChain(chain, request, response, httpRequest);
+            return;
+        }
+        final ScsHttpServletResponse scsResponse = (trustedValue != null)?
+                new ScsHttpServletResponse((HttpServletResponse)response, httpRequest, trustedHeader, trustedState):
+                new ScsHttpServletResponse((HttpServletResponse)response, httpRequest, scsService, shed);
+        request.setAttribute(RESPONSE_ATTRIBUTE, scsResponse);
         try {
-            if(response.isCommitted()) {
-                getLogger().warn("Response is already committed so SCS cookie will not be set and all session state changes " +
-                        "made during processing the current request will be lost.");
-            }
-            else {
-                final SCSession session = scsService.putIntoDownstream((HttpServletResponse)response, httpRequest);
-                getLogger().debug("Session put into downstream: {}.", session);
+            doChain(chain, request.isAsyncSupported()?new ScsHttpServletRequest(httpRequest, scsResponse):request,
+                    scsResponse, httpRequest);
+        } finally {
+            if(!request.isAsyncStarted()) {
+                request.removeAttribute(RESPONSE_ATTRIBUTE);
             }
+        }
+        if(request.isAsyncStarted()) {
+            getLogger().debug("Request is processed asynchronously, SCS cookie will be set on completion.");
+            return;
+        }
+        finish(scsResponse);
+    }
+
+    private static void doChain(final FilterChain chain, final ServletRequest request, final ServletResponse response,
+                                final HttpServletRequest httpRequest) throws IOException, ServletException {
+        final SCSContext previous = SCSContext.bind(SCSService.contextOf(httpRequest));
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            SCSContext.restore(previous);
+        }
+    }
+
+    private static void finish(final ScsHttpServletResponse scsResponse) throws ServletException {
+        try {
+            scsResponse.finish();
         } catch (SCSException e) {
             throw new ServletException(e);
         }
@@ -66,37 +206,161 @@ public class SCSFilter implements Filter {
     public void destroy() {}
 }
 
-class ScsHttpServletResponse extends HttpServletResponseWrapper {
-    private final HttpServletRequest request;
-    private final SCSService scsService;
+class ScsHttpServletRequest extends HttpServletRequestWrapper {
+    private final ScsHttpServletResponse response;
+
+    ScsHttpServletRequest(HttpServletRequest request, ScsHttpServletResponse response) {
+        super(request);
+        this.response = response;
+    }
+
+    @Override
+    public AsyncContext startAsync() throws IllegalStateException {
+        return started(super.startAsync(this, response));
+    }
+
+    @Override
+    public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse)
+            throws IllegalStateException {
+        return started(super.startAsync(servletRequest, servletResponse));
+    }
 
     /**
-     * Constructs a response adaptor wrapping the given response.
-     *
-     * @param response
-     * @throws IllegalArgumentException if the response is null
+     * Registers the listener setting the SCS cookie if the asynchronous processing ends without calling
+     * {@link ScsAsyncContext#complete()}, on a timeout or an error. The container drops the listeners when
+     * the asynchronous processing is started again, so the listener is registered on each start.
      */
-    public ScsHttpServletResponse(HttpServletResponse response, HttpServletRequest request, SCSService scsService) {
-        super(response);
-        this.request = request;
-        this.scsService = scsService;
+    private AsyncContext started(final AsyncContext asyncContext) {
+        asyncContext.addListener(new ScsAsyncListener(response));
+        return new ScsAsyncContext(asyncContext, response);
+    }
+
+    @Override
+    public AsyncContext getAsyncContext() {
+        final AsyncContext asyncContext = super.getAsyncContext();
+        return (asyncContext instanceof ScsAsyncContext)?asyncContext:new ScsAsyncContext(asyncContext, response);
+    }
+}
+
+/**
+ * The listener setting the SCS cookie when the asynchronous processing times out or fails, before the container
+ * writes the error response, and when it is completed by the container. The cookie is set only once, so the listener
+ * does nothing if the application has already completed the processing through {@link ScsAsyncContext}.
+ */
+class ScsAsyncListener implements AsyncListener {
+    private final ScsHttpServletResponse response;
+
+    ScsAsyncListener(ScsHttpServletResponse response) {
+        this.response = response;
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        finish();
     }
 
     @Override
-    public void sendRedirect(String location) throws IOException {
-        if(isCommitted()) {
-            getLogger().warn("Response is already committed so SCS cookie will not be set and all session state changes " +
-                    "made during processing the current request will be lost.");
+    public void onTimeout(AsyncEvent event) {
+        finish();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        finish();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {}
+
+    private void finish() {
+        try {
+            response.finish();
+        } catch (SCSException e) {
+            getLogger().error("A error occurred while encoding SCS: {}.", e.getMessage());
         }
-        else {
-            final SCSession session;
-            try {
-                session = scsService.putIntoDownstream(this, request);
-                getLogger().debug("Session put into downstream: {}.", session);
-            } catch (SCSException e) {
-                getLogger().error("A error occurred while encoding SCS: {}.", e.getMessage());
-            }
+    }
+}
+
+/**
+ * The asynchronous context setting the SCS cookie when the asynchronous processing is completed. The session state
+ * is kept in the request attributes, so it is carried across the threads processing the request.
+ */
+class ScsAsyncContext implements AsyncContext {
+    private final AsyncContext asyncContext;
+    private final ScsHttpServletResponse response;
+
+    ScsAsyncContext(AsyncContext asyncContext, ScsHttpServletResponse response) {
+        this.asyncContext = asyncContext;
+        this.response = response;
+    }
+
+    @Override
+    public void complete() {
+        try {
+            response.finish();
+        } catch (SCSException e) {
+            getLogger().error("A error occurred while encoding SCS: {}.", e.getMessage());
         }
-        super.sendRedirect(location);
+        asyncContext.complete();
+    }
+
+    @Override
+    public ServletRequest getRequest() {
+        return asyncContext.getRequest();
+    }
+
+    @Override
+    public ServletResponse getResponse() {
+        return asyncContext.getResponse();
+    }
+
+    @Override
+    public boolean hasOriginalRequestAndResponse() {
+        return asyncContext.hasOriginalRequestAndResponse();
+    }
+
+    @Override
+    public void dispatch() {
+        asyncContext.dispatch();
+    }
+
+    @Override
+    public void dispatch(String path) {
+        asyncContext.dispatch(path);
+    }
+
+    @Override
+    public void dispatch(ServletContext context, String path) {
+        asyncContext.dispatch(context, path);
+    }
+
+    @Override
+    public void start(Runnable run) {
+        asyncContext.start(run);
+    }
+
+    @Override
+    public void addListener(AsyncListener listener) {
+        asyncContext.addListener(listener);
+    }
+
+    @Override
+    public void addListener(AsyncListener listener, ServletRequest servletRequest, ServletResponse servletResponse) {
+        asyncContext.addListener(listener, servletRequest, servletResponse);
+    }
+
+    @Override
+    public <T extends AsyncListener> T createListener(Class<T> clazz) throws ServletException {
+        return asyncContext.createListener(clazz);
+    }
+
+    @Override
+    public void setTimeout(long timeout) {
+        asyncContext.setTimeout(timeout);
+    }
+
+    @Override
+    public long getTimeout() {
+        return asyncContext.getTimeout();
     }
 }
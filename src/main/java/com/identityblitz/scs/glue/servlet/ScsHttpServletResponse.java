@@ -0,0 +1,277 @@
+package com.identityblitz.scs.glue.servlet;
+
+import com.identityblitz.scs.SCSService;
+import com.identityblitz.scs.SCSession;
+import com.identityblitz.scs.TrustedHeader;
+import com.identityblitz.scs.error.SCSException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import static com.identityblitz.scs.LoggingUtils.getLogger;
+
+/**
+ * The response wrapper setting the SCS cookie at the first point the response may be committed: the first write
+ * into the output stream or the writer, {@link #flushBuffer()}, {@link #sendError(int)} or
+ * {@link #sendRedirect(String)}. If none of them happens, the cookie is set when the request processing is finished.
+ * The session state changes made after the cookie is set are lost and reported to the log.
+ * If the session state is received from the gateway in the trusted header, the changed state is returned in the same
+ * response header at these points instead of the cookie.
+ */
+class ScsHttpServletResponse extends HttpServletResponseWrapper {
+    private final HttpServletRequest request;
+    private final SCSService scsService;
+    private final TrustedHeader trustedHeader;
+    private final String trustedState;
+    private final boolean shed;
+    private boolean stored;
+    private String storedState;
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
+
+    /**
+     * Constructs a response adaptor wrapping the given response.
+     *
+     * @param response
+     * @throws IllegalArgumentException if the response is null
+     */
+    public ScsHttpServletResponse(HttpServletResponse response, HttpServletRequest request, SCSService scsService) {
+        this(response, request, scsService, false);
+    }
+
+    /**
+     * Constructs a response adaptor for the request which SCS decoding may have been shed by the bulkhead. The SCS
+     * cookie of such a request is not expired if there is no session state, as the cookie received may be valid.
+     * @param response - response.
+     * @param request - request.
+     * @param scsService - SCS service.
+     * @param shed - true if the SCS decoding of the request is shed.
+     */
+    ScsHttpServletResponse(HttpServletResponse response, HttpServletRequest request, SCSService scsService,
+                           boolean shed) {
+        super(response);
+        this.request = request;
+        this.scsService = scsService;
+        this.trustedHeader = null;
+        this.trustedState = null;
+        this.shed = shed;
+    }
+
+    /**
+     * Constructs a response adaptor returning the changed session state to the gateway in the trusted header.
+     * @param response - response.
+     * @param request - request.
+     * @param trustedHeader - codec of the trusted header.
+     * @param trustedState - session state received in the trusted header.
+     */
+    ScsHttpServletResponse(HttpServletResponse response, HttpServletRequest request, TrustedHeader trustedHeader,
+                           String trustedState) {
+        super(response);
+        this.request = request;
+        this.scsService = null;
+        this.trustedHeader = trustedHeader;
+        this.trustedState = trustedState;
+        this.shed = false;
+    }
+
+    /**
+     * Sets the SCS cookie if it has not been set yet, otherwise reports the session state changes made after it.
+     * Called when the request processing is finished.
+     * @throws SCSException - if an error occurred while encoding SCS.
+     */
+    void finish() throws SCSException {
+        if(!stored) {
+            store();
+        }
+        else if(!equals(storedState, SCSService.getSCS(request))) {
+            getLogger().warn("Session state is changed after SCS cookie has been set, the changes made after " +
+                    "the response has started to be written will be lost.");
+        }
+    }
+
+    private void beforeCommit() {
+        if(stored)
+            return;
+        try {
+            store();
+        } catch (SCSException e) {
+            getLogger().error("A error occurred while encoding SCS: {}.", e.getMessage());
+        }
+    }
+
+    private void store() throws SCSException {
+        stored = true;
+        storedState = SCSService.getSCS(request);
+        if(shed && storedState == null) {
+            getLogger().debug("SCS decoding is shed, the received SCS cookie is left as is.");
+            return;
+        }
+        if(isCommitted()) {
+            getLogger().warn("Response is already committed so SCS cookie will not be set and all session state changes " +
+                    "made during processing the current request will be lost.");
+            return;
+        }
+        if(trustedHeader != null) {
+            if(!equals(trustedState, storedState)) {
+                getLogger().debug("Changed session state is returned in the trusted header.");
+                setHeader(TrustedHeader.NAME,
+                        trustedHeader.encodeResponse(request.getMethod(), request.getRequestURI(), storedState));
+            }
+            return;
+        }
+        final SCSession session = scsService.putIntoDownstream((HttpServletResponse)getResponse(), request);
+        getLogger().debug("Session put into downstream: {}.", session);
+    }
+
+    private static boolean equals(final String a, final String b) {
+        return (a == null)?b == null:a.equals(b);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        beforeCommit();
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        beforeCommit();
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        beforeCommit();
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        beforeCommit();
+        super.flushBuffer();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        // the cookie is cleared together with the other headers
+        stored = false;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if(outputStream == null) {
+            outputStream = new ScsServletOutputStream(super.getOutputStream());
+        }
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if(writer == null) {
+            writer = new ScsPrintWriter(super.getWriter());
+        }
+        return writer;
+    }
+
+    private final class ScsServletOutputStream extends ServletOutputStream {
+        private final ServletOutputStream out;
+
+        private ScsServletOutputStream(final ServletOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            beforeCommit();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            beforeCommit();
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            beforeCommit();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            beforeCommit();
+            out.close();
+        }
+
+        /**
+         * Servlet 3.1 non-blocking output, delegated to the container stream. Not annotated with @Override to stay
+         * loadable in Servlet 3.0 containers, which never call it.
+         */
+        public boolean isReady() {
+            return out.isReady();
+        }
+
+        /**
+         * Servlet 3.1 non-blocking output, delegated to the container stream. The SCS cookie is set before
+         * the listener is registered, as the response may be committed by any write made from the listener.
+         */
+        public void setWriteListener(final WriteListener writeListener) {
+            beforeCommit();
+            out.setWriteListener(writeListener);
+        }
+    }
+
+    /**
+     * The writer setting the SCS cookie before the first write. It writes through the container writer, so
+     * {@link #checkError()} reports the errors of the container writer.
+     */
+    private final class ScsPrintWriter extends PrintWriter {
+
+        private ScsPrintWriter(final PrintWriter out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) {
+            beforeCommit();
+            super.write(c);
+        }
+
+        @Override
+        public void write(char[] buf, int off, int len) {
+            beforeCommit();
+            super.write(buf, off, len);
+        }
+
+        @Override
+        public void write(String s, int off, int len) {
+            beforeCommit();
+            super.write(s, off, len);
+        }
+
+        @Override
+        public void println() {
+            beforeCommit();
+            super.println();
+        }
+
+        @Override
+        public void flush() {
+            beforeCommit();
+            super.flush();
+        }
+
+        @Override
+        public void close() {
+            beforeCommit();
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.identityblitz.scs.glue.servlet;
+
+import com.identityblitz.scs.tenant.TenantResolver;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Locale;
+
+/**
+ * The collection of tenant resolvers for the servlet requests.
+ */
+public class ServletTenantResolvers {
+
+    private ServletTenantResolvers() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns the resolver taking the server name of the request (Host header without port) in lower case as
+     * the tenant identifier.
+     * @return - tenant resolver.
+     */
+    public static TenantResolver<HttpServletRequest> byHost() {
+        return new TenantResolver<HttpServletRequest>() {
+            @Override
+            public String resolveTenant(HttpServletRequest request) {
+                final String host = request.getServerName();
+                return (host != null)?host.toLowerCase(Locale.ENGLISH):null;
+            }
+        };
+    }
+
+    /**
+     * Returns the resolver taking the first segment of the request path after the context path as the tenant
+     * identifier. For example the request <b>/app/acme/login</b> to the application with context path <b>/app</b>
+     * belongs to the tenant <b>acme</b>.
+     * @return - tenant resolver.
+     */
+    public static TenantResolver<HttpServletRequest> byPathPrefix() {
+        return new TenantResolver<HttpServletRequest>() {
+            @Override
+            public String resolveTenant(HttpServletRequest request) {
+                final String uri = request.getRequestURI();
+                final int start = request.getContextPath().length() + 1;
+                if(uri == null || uri.length() <= start)
+                    return null;
+                final int end = uri.indexOf('/', start);
+                return uri.substring(start, (end < 0)?uri.length():end);
+            }
+        };
+    }
+
+    /**
+     * Returns the resolver taking the value of the specified request attribute as the tenant identifier. The attribute
+     * must be set by a filter placed in the chain before the SCS filter.
+     * @param attributeName - name of the attribute.
+     * @return - tenant resolver.
+     */
+    public static TenantResolver<HttpServletRequest> byAttribute(final String attributeName) {
+        return new TenantResolver<HttpServletRequest>() {
+            @Override
+            public String resolveTenant(HttpServletRequest request) {
+                final Object tenant = request.getAttribute(attributeName);
+                return (tenant == null)?null:tenant.toString();
+            }
+        };
+    }
+
+}
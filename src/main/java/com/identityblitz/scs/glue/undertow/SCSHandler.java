@@ -0,0 +1,252 @@
+package com.identityblitz.scs.glue.undertow;
+
+import com.identityblitz.scs.CookieUtils;
+import com.identityblitz.scs.OffloadPolicy;
+import com.identityblitz.scs.SCSContext;
+import com.identityblitz.scs.SCSService;
+import com.identityblitz.scs.SCSession;
+import com.identityblitz.scs.error.SCSException;
+import com.identityblitz.scs.error.SCSExpiredException;
+import com.identityblitz.scs.error.SCSRejectedException;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.ResponseCommitListener;
+import io.undertow.util.AttachmentKey;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static com.identityblitz.scs.LoggingUtils.getLogger;
+import static com.identityblitz.scs.OffloadPolicy.Operation.DECODE;
+
+/**
+ * This Undertow handler adds Secure Cookie Session (SCS) functionality to the wrapped handler without going through
+ * the servlet API, so the non-blocking handlers stay on the I/O thread. The SCS cookie is read from the request
+ * header map, the session state is attached to the exchange and the SCS cookie is added to the response headers by
+ * a response commit listener. To get current session state it is necessary to use the function
+ * {@link com.identityblitz.scs.SCSService#getSCS(Object)}
+ * and to change the current session state - the function
+ * {@link com.identityblitz.scs.SCSService#changeSCS(Object, String)} called with the exchange. While the wrapped
+ * handler is called, the session state is also available through {@link com.identityblitz.scs.SCSContext#current()}.
+ * By default SCS is decoded on the thread the handler is called on. If the handler is created with an offload policy
+ * (see {@link #offload(java.util.concurrent.Executor, com.identityblitz.scs.OffloadPolicy)}), the exchange is
+ * dispatched to a worker thread only when decoding the received cookie is estimated to be expensive.
+ * The requests excluded by the rules of the service (see
+ * {@link com.identityblitz.scs.SCSService#isExcluded(String, String, int)}) are passed as is.
+ * If the SCS decoding is shed by the bulkhead of the service (see {@link com.identityblitz.scs.Bulkhead}), the request
+ * is processed as if it had no SCS cookie or answered with 503 (Service Unavailable) according to the fallback of
+ * the bulkhead.
+ */
+public class SCSHandler implements HttpHandler {
+    private static final AttachmentKey<State> STATE = AttachmentKey.create(State.class);
+
+    private final SCSService scsService;
+    private final HttpHandler next;
+    private Executor cryptoExecutor;
+    private OffloadPolicy offloadPolicy;
+
+    public SCSHandler(final HttpHandler next) {
+        this(SCSService.getDefault(), next);
+    }
+
+    public SCSHandler(final SCSService scsService, final HttpHandler next) {
+        this.scsService = scsService;
+        this.next = next;
+    }
+
+    /**
+     * Makes the handler to dispatch the exchange from the I/O thread before decoding SCS if the decoding is estimated
+     * to be expensive. The cheap cookies are still decoded on the I/O thread.
+     * @param cryptoExecutor - executor to dispatch the exchange to, if null the worker pool of the server is used.
+     * @param offloadPolicy - policy deciding which operations are expensive.
+     * @return - this handler.
+     */
+    public SCSHandler offload(final Executor cryptoExecutor, final OffloadPolicy offloadPolicy) {
+        this.cryptoExecutor = cryptoExecutor;
+        this.offloadPolicy = offloadPolicy;
+        return this;
+    }
+
+    /**
+     * Returns the current session state of the exchange.
+     * @param exchange - exchange.
+     * @return - current session state or null if the exchange is not processed by the handler.
+     */
+    public static String getSCS(final HttpServerExchange exchange) {
+        final State state = exchange.getAttachment(STATE);
+        return (state != null)?state.session:null;
+    }
+
+    /**
+     * Changes the current session state of the exchange.
+     * @param exchange - exchange.
+     * @param session - new session state.
+     */
+    public static void changeSCS(final HttpServerExchange exchange, final String session) {
+        contextOf(exchange).changeSCS(session);
+    }
+
+    /**
+     * Returns the context of the exchange accessing its session state directly.
+     * @param exchange - exchange.
+     * @return - context of the exchange.
+     */
+    public static SCSContext contextOf(final HttpServerExchange exchange) {
+        final State state = exchange.getAttachment(STATE);
+        if(state == null)
+            throw new IllegalStateException("exchange is not processed by SCS handler");
+        return state;
+    }
+
+    @Override
+    public void handleRequest(final HttpServerExchange exchange) throws Exception {
+        final String path = exchange.getRequestPath();
+        if(scsService.isExcluded(exchange.getRequestMethod().toString(), path, 0)) {
+            getLogger().debug("Request {} is excluded from SCS processing.", path);
+            next.handleRequest(exchange);
+            return;
+        }
+
+        final String cookieValue = findCookieValue(exchange.getRequestHeaders().get(Headers.COOKIE),
+                scsService.getCookieName());
+        if(cookieValue != null && offloadPolicy != null && exchange.isInIoThread()
+                && offloadPolicy.isExpensive(DECODE, cookieValue.length())) {
+            getLogger().debug("SCS cookie is decoded on a worker thread.");
+            if(cryptoExecutor != null)
+                exchange.dispatch(cryptoExecutor, this);
+            else
+                exchange.dispatch(this);
+            return;
+        }
+
+        String session;
+        boolean hadCookie = cookieValue != null;
+        try {
+            session = decodeState(cookieValue, exchange.isInIoThread());
+        } catch (SCSRejectedException e) {
+            if(!scsService.isShedAsAbsent()) {
+                getLogger().debug("SCS decoding is shed, request {} is rejected.", path);
+                exchange.setStatusCode(503);
+                exchange.endExchange();
+                return;
+            }
+            getLogger().debug("SCS decoding is shed, request {} is processed without session.", path);
+            session = null;
+            hadCookie = false;
+        }
+        final State state = new State(session, hadCookie, scsService.isVerifyOnly());
+        exchange.putAttachment(STATE, state);
+        if(state.readOnly) {
+            handleNext(exchange, state);
+            return;
+        }
+        exchange.addResponseCommitListener(new ResponseCommitListener() {
+            @Override
+            public void beforeCommit(final HttpServerExchange exchange) {
+                try {
+                    storeState(exchange, state);
+                } catch (SCSException e) {
+                    getLogger().error("A error occurred while encoding SCS: {}.", e.getMessage());
+                }
+            }
+        });
+        handleNext(exchange, state);
+    }
+
+    private void handleNext(final HttpServerExchange exchange, final State state) throws Exception {
+        final SCSContext previous = SCSContext.bind(state);
+        try {
+            next.handleRequest(exchange);
+        } finally {
+            SCSContext.restore(previous);
+        }
+    }
+
+    private String decodeState(final String cookieValue, final boolean inIoThread) throws SCSException {
+        if(cookieValue == null)
+            return null;
+        try {
+            final long start = System.nanoTime();
+            final SCSession session = inIoThread?scsService.decodeWithoutWaiting(cookieValue):
+                    scsService.decode(cookieValue);
+            if(offloadPolicy != null)
+                offloadPolicy.record(DECODE, cookieValue.length(), System.nanoTime() - start);
+            getLogger().debug("SCS [{}] is extracted from request cookie.", session);
+            return session.getData();
+        } catch (SCSExpiredException e) {
+            return null;
+        }
+    }
+
+    private void storeState(final HttpServerExchange exchange, final State state) throws SCSException {
+        if(hasSetCookie(exchange, scsService.getCookieName())) {
+            getLogger().debug("SCS cookie is already set by the application.");
+            return;
+        }
+        final String session = state.session;
+        if(session != null) {
+            final SCSession scs = scsService.encode(session);
+            getLogger().debug("session state is stored into SCS cookie {}.", scs);
+            exchange.getResponseHeaders().add(Headers.SET_COOKIE, scsService.toSetCookieHeader(scs).toString());
+        }
+        else if(state.hadCookie) {
+            getLogger().debug("there is no session state to store in SCS cookie.");
+            exchange.getResponseHeaders().add(Headers.SET_COOKIE, scsService.toSetCookieHeader("") + "; Max-Age=0");
+        }
+    }
+
+    private static boolean hasSetCookie(final HttpServerExchange exchange, final String name) {
+        final Map<String, ?> cookies = exchange.getResponseCookies();
+        if(cookies != null && cookies.containsKey(name))
+            return true;
+        final HeaderValues headers = exchange.getResponseHeaders().get(Headers.SET_COOKIE);
+        if(headers == null)
+            return false;
+        for(String header : headers) {
+            if(CookieUtils.isSetCookieOf(header, name))
+                return true;
+        }
+        return false;
+    }
+
+    private static String findCookieValue(final HeaderValues headers, final String name) {
+        if(headers == null)
+            return null;
+        for(String header : headers) {
+            final String value = CookieUtils.findCookieValue(header, name);
+            if(value != null)
+                return value;
+        }
+        return null;
+    }
+
+    /**
+     * The session state of the exchange. The exchange may be processed by several threads one after another, so
+     * the state is volatile.
+     */
+    private static final class State extends SCSContext {
+        private final boolean hadCookie;
+        private final boolean readOnly;
+        private volatile String session;
+
+        private State(final String session, final boolean hadCookie, final boolean readOnly) {
+            this.session = session;
+            this.hadCookie = hadCookie;
+            this.readOnly = readOnly;
+        }
+
+        @Override
+        public String getSCS() {
+            return session;
+        }
+
+        @Override
+        public void changeSCS(final String session) {
+            if(readOnly)
+                throw new IllegalStateException("SCS can't be changed in the verify-only mode");
+            this.session = session;
+        }
+    }
+}
@@ -9,36 +9,49 @@ import java.util.ServiceLoader;
  * The service provider allows to obtain the following services:
  *  - cryptographic transformation service;
  *  - configuration service.
+ * The services are discovered through {@link java.util.ServiceLoader} lazily, on the first call to the corresponding
+ * getter. The applications building {@link com.identityblitz.scs.SCSService} explicitly with
+ * {@link com.identityblitz.scs.SCSService#builder()}, passing either the configuration or all the parameters and
+ * the cryptographic service, don't need any provider. The static accessors of the session state check only whether
+ * a configuration provider exists (see {@link #hasConfiguration()}) before looking for the platform override in it.
  */
 public enum ServiceProvider {
     INSTANCE;
 
-    private static final CryptoTransformationService cryptoService;
-    private static final ConfigurationService configService;
-
-    static {
-        final Iterator<ConfigurationService> cItr =
-                ServiceLoader.load(ConfigurationService.class).iterator();
-        if(!cItr.hasNext())
-            throw new RuntimeException("configuration service is undefined.");
-        configService = cItr.next();
-
-        final Iterator<CryptoTransformationService> ctsItr =
-                ServiceLoader.load(CryptoTransformationService.class).iterator();
-        if(!ctsItr.hasNext())
-            throw new RuntimeException("cryptographic transformation service is undefined.");
-        cryptoService = ctsItr.next();
-    }
-
     public static ServiceProvider service() {
         return INSTANCE;
     }
 
     public CryptoTransformationService getCryptoService() {
-        return cryptoService;
+        return CryptoHolder.cryptoService;
     }
 
     public ConfigurationService getConfiguration() {
-        return configService;
+        return ConfigurationHolder.configService;
+    }
+
+    /**
+     * Checks whether a configuration service provider is available without failing if there is none.
+     * @return - true if {@link #getConfiguration()} can return the configuration service.
+     */
+    public boolean hasConfiguration() {
+        return ServiceLoader.load(ConfigurationService.class).iterator().hasNext();
+    }
+
+    private static <T> T load(final Class<T> clazz, final String errorMessage) {
+        final Iterator<T> itr = ServiceLoader.load(clazz).iterator();
+        if(!itr.hasNext())
+            throw new RuntimeException(errorMessage);
+        return itr.next();
+    }
+
+    private static final class ConfigurationHolder {
+        private static final ConfigurationService configService =
+                load(ConfigurationService.class, "configuration service is undefined.");
+    }
+
+    private static final class CryptoHolder {
+        private static final CryptoTransformationService cryptoService =
+                load(CryptoTransformationService.class, "cryptographic transformation service is undefined.");
     }
 }
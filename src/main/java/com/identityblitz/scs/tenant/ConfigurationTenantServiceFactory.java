@@ -0,0 +1,25 @@
+package com.identityblitz.scs.tenant;
+
+import com.identityblitz.scs.SCSService;
+import com.identityblitz.scs.service.spi.ConfigurationService;
+
+/**
+ * The factory building the tenant services from the tenant configuration
+ * {@link com.identityblitz.scs.tenant.TenantConfigurationService}. The default tenant uses the passed
+ * configuration as is. The keys of the tenant are read by {@link com.identityblitz.scs.glue.BasicCryptoService}.
+ */
+public class ConfigurationTenantServiceFactory implements TenantServiceFactory {
+    private final ConfigurationService configuration;
+
+    public ConfigurationTenantServiceFactory(final ConfigurationService configuration) {
+        this.configuration = configuration;
+    }
+
+    @Override
+    public SCSService createService(final String tenantId) {
+        return SCSService.builder()
+                .configuration((tenantId == null)?configuration:new TenantConfigurationService(configuration, tenantId))
+                .build();
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.identityblitz.scs.tenant;
+
+import com.identityblitz.scs.service.spi.ConfigurationService;
+
+/**
+ * The configuration of a tenant. For each parameter it first looks up the parameter suffixed by the tenant
+ * identifier, for example <b>com.identityblitz.scs.cookieName.acme</b>, and if it is not set, falls back to
+ * the parameter itself.
+ */
+public class TenantConfigurationService implements ConfigurationService {
+    private final ConfigurationService configuration;
+    private final String suffix;
+
+    public TenantConfigurationService(final ConfigurationService configuration, final String tenantId) {
+        this.configuration = configuration;
+        this.suffix = "." + tenantId;
+    }
+
+    @Override
+    public Long getLong(String name) {
+        final Long val = configuration.getLong(name + suffix);
+        return (val == null)?configuration.getLong(name):val;
+    }
+
+    @Override
+    public Long getLong(String name, Long defaultValue) {
+        final Long val = configuration.getLong(name + suffix);
+        return (val == null)?configuration.getLong(name, defaultValue):val;
+    }
+
+    @Override
+    public String getString(String name) {
+        final String val = configuration.getString(name + suffix);
+        return (val == null)?configuration.getString(name):val;
+    }
+
+    @Override
+    public String getString(String name, String defaultValue) {
+        final String val = configuration.getString(name + suffix);
+        return (val == null)?configuration.getString(name, defaultValue):val;
+    }
+
+    @Override
+    public Boolean getBoolean(String name) {
+        final Boolean val = configuration.getBoolean(name + suffix);
+        return (val == null)?configuration.getBoolean(name):val;
+    }
+
+    @Override
+    public Boolean getBoolean(String name, Boolean defaultValue) {
+        final Boolean val = configuration.getBoolean(name + suffix);
+        return (val == null)?configuration.getBoolean(name, defaultValue):val;
+    }
+
+}
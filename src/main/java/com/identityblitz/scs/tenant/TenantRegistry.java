@@ -0,0 +1,136 @@
+package com.identityblitz.scs.tenant;
+
+import com.identityblitz.scs.Clock;
+import com.identityblitz.scs.SCSService;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.identityblitz.scs.LoggingUtils.getLogger;
+
+/**
+ * The registry of tenant SCS services. The service of a tenant is created by
+ * {@link com.identityblitz.scs.tenant.TenantServiceFactory} on the first request of the tenant and is evicted
+ * when the tenant has been idle longer than the specified timeout. The lookup is a single hash map access,
+ * the eviction is done by a sweep which runs at most once per half of the idle timeout on a request thread.
+ * The tenant identifiers usually come from the requests (the host or the path), so they are controlled by clients.
+ * To keep a client from creating services at will, the registry accepts only the allowed tenants if the allow-list
+ * is set and holds not more than the maximum number of tenants. The other tenants are refused: the registry fails
+ * closed and never serves them by the service of another tenant, the glues answer their requests with 404 (Not Found).
+ * Without the allow-list the maximum number of tenants must exceed the number of the real tenants, otherwise
+ * the tenants coming after a burst of forged identifiers are refused until the idle ones are evicted.
+ */
+public class TenantRegistry {
+    private static final String DEFAULT_TENANT = "";
+    /**
+     * Last access time is updated not more often than once per second to avoid writing to the shared memory on
+     * each request.
+     */
+    private static final long TOUCH_GRANULARITY_IN_MILLIS = 1000L;
+    private static final int DEFAULT_MAX_TENANTS = 1024;
+
+    private final ConcurrentMap<String, TenantEntry> tenants = new ConcurrentHashMap<String, TenantEntry>();
+    private final TenantServiceFactory factory;
+    private final long idleTimeoutInMillis;
+    private final Set<String> allowedTenants;
+    private final int maxTenants;
+    private final Clock clock;
+    private final AtomicLong nextSweep;
+
+    public TenantRegistry(final TenantServiceFactory factory, final long idleTimeoutInSec) {
+        this(factory, idleTimeoutInSec, Clock.SYSTEM);
+    }
+
+    public TenantRegistry(final TenantServiceFactory factory, final long idleTimeoutInSec, final Clock clock) {
+        this(factory, idleTimeoutInSec, null, DEFAULT_MAX_TENANTS, clock);
+    }
+
+    /**
+     * Creates the registry.
+     * @param factory - factory of the tenant services.
+     * @param idleTimeoutInSec - idle timeout of a tenant in seconds.
+     * @param allowedTenants - identifiers of the tenants having own services or null to allow any tenant.
+     * @param maxTenants - maximum number of the tenants having own services at once, the default tenant included.
+     * @param clock - clock.
+     */
+    public TenantRegistry(final TenantServiceFactory factory, final long idleTimeoutInSec,
+                          final Set<String> allowedTenants, final int maxTenants, final Clock clock) {
+        if(idleTimeoutInSec <= 0)
+            throw new IllegalArgumentException("idle timeout must be positive.");
+        if(maxTenants <= 0)
+            throw new IllegalArgumentException("maximum number of tenants must be positive.");
+        this.factory = factory;
+        this.idleTimeoutInMillis = idleTimeoutInSec * 1000;
+        this.allowedTenants = allowedTenants;
+        this.maxTenants = maxTenants;
+        this.clock = clock;
+        this.nextSweep = new AtomicLong(clock.currentTimeMillis() + idleTimeoutInMillis / 2);
+    }
+
+    /**
+     * Returns the SCS service of the specified tenant creating it if necessary.
+     * @param tenantId - tenant identifier or null for the default tenant.
+     * @return - SCS service of the tenant or null if the tenant is not allowed or the maximum number of tenants is
+     * reached.
+     */
+    public SCSService getService(final String tenantId) {
+        final long now = clock.currentTimeMillis();
+        if(tenantId != null && allowedTenants != null && !allowedTenants.contains(tenantId)) {
+            getLogger().debug("Tenant [{}] is not allowed.", tenantId);
+            return null;
+        }
+        final String key = (tenantId == null)?DEFAULT_TENANT:tenantId;
+        TenantEntry entry = tenants.get(key);
+        if(entry == null) {
+            if(tenantId != null && tenants.size() >= maxTenants) {
+                getLogger().warn("Maximum number of tenants is reached, tenant [{}] is refused.", tenantId);
+                evictIdleIfDue(now);
+                return null;
+            }
+            final TenantEntry created = new TenantEntry(factory.createService(tenantId), now);
+            entry = tenants.putIfAbsent(key, created);
+            if(entry == null) {
+                entry = created;
+                getLogger().debug("SCS service for tenant [{}] is created.", key);
+            }
+        }
+        else if(now - entry.lastAccess > TOUCH_GRANULARITY_IN_MILLIS) {
+            entry.lastAccess = now;
+        }
+        evictIdleIfDue(now);
+        return entry.service;
+    }
+
+    /**
+     * Returns the number of the tenants which services are currently held.
+     * @return - number of the tenants.
+     */
+    public int size() {
+        return tenants.size();
+    }
+
+    private void evictIdleIfDue(final long now) {
+        final long sweep = nextSweep.get();
+        if(now < sweep || !nextSweep.compareAndSet(sweep, now + idleTimeoutInMillis / 2))
+            return;
+        for(Map.Entry<String, TenantEntry> tenant : tenants.entrySet()) {
+            if(now - tenant.getValue().lastAccess > idleTimeoutInMillis
+                    && tenants.remove(tenant.getKey(), tenant.getValue())) {
+                getLogger().debug("SCS service for idle tenant [{}] is evicted.", tenant.getKey());
+            }
+        }
+    }
+
+    private static final class TenantEntry {
+        private final SCSService service;
+        private volatile long lastAccess;
+
+        private TenantEntry(final SCSService service, final long lastAccess) {
+            this.service = service;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
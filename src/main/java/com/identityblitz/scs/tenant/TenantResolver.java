@@ -0,0 +1,17 @@
+package com.identityblitz.scs.tenant;
+
+/**
+ * Determines the tenant a request belongs to.
+ * @param <R> - type of the platform request.
+ */
+public interface TenantResolver<R> {
+
+    /**
+     * Returns an identifier of the tenant the specified request belongs to. If the tenant can not be determined
+     * returns null, in this case the default tenant is used.
+     * @param request - platform request.
+     * @return - tenant identifier or null.
+     */
+    public String resolveTenant(final R request);
+
+}
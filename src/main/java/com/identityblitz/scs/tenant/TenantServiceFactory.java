@@ -0,0 +1,18 @@
+package com.identityblitz.scs.tenant;
+
+import com.identityblitz.scs.SCSService;
+
+/**
+ * Creates SCS services for tenants. Each service holds its own keys, cookie settings, compression policy and
+ * cryptographic state.
+ */
+public interface TenantServiceFactory {
+
+    /**
+     * Creates the SCS service for the specified tenant.
+     * @param tenantId - tenant identifier or null for the default tenant.
+     * @return - SCS service of the tenant.
+     */
+    public SCSService createService(final String tenantId);
+
+}
@@ -1,18 +1,13 @@
 package com.identityblitz.scs.glue.play
 
+import java.util.concurrent.atomic.AtomicReference
 import play.api.mvc._
-import com.identityblitz.scs.{ConfigParameter, SCSService}
-import scala.concurrent.Future
-import scala.util.Try
-import com.identityblitz.scs.error.{SCSException, SCSExpiredException, SCSBrokenException}
-import play.api.libs.concurrent.Execution.Implicits._
-import com.identityblitz.scs.service.ServiceProvider._
-import play.api.mvc.DiscardingCookie
-import play.api.mvc.Cookie
-import scala.Some
-import play.api.mvc.SimpleResult
+import com.identityblitz.scs.{SCSService, SCSession}
+import scala.concurrent.{ExecutionContext, Future}
+import scala.util.{Failure, Success, Try}
+import com.identityblitz.scs.error.{SCSException, SCSExpiredException, SCSBrokenException, SCSRejectedException}
+import play.api.libs.iteratee.Execution.trampoline
 import com.identityblitz.scs.LoggingUtils._
-import play.mvc.Http.HeaderNames
 
 /**
  * The Play framework action builder to add the SCS functionality to the actors from the Play application
@@ -22,73 +17,91 @@ import play.mvc.Http.HeaderNames
  * current state use [[com.identityblitz.scs.glue.play.SCSRequest.changeSCS()]].
  * If the actions gets the broken SCS cookie it returns the BAD REQUEST status and discards the SCS cookie.
  * If the action gets the expired SCS cookie the current SCS state is considered as not set.
+ * The companion object uses the default [[com.identityblitz.scs.SCSService]], to use an explicitly built service
+ * create a new builder with it.
+ * If the SCS decoding is shed by the bulkhead of the service (see [[com.identityblitz.scs.Bulkhead]]), the request is
+ * processed as if it had no SCS cookie or answered with the SERVICE UNAVAILABLE status according to the fallback of
+ * the bulkhead.
+ * The requests excluded by the rules of the service (see [[com.identityblitz.scs.SCSService.isExcluded]]) are passed
+ * to the block without SCS state and the result is returned as is.
+ * The SCS cookie is decoded and encoded on the passed execution context, by default on
+ * [[com.identityblitz.scs.glue.play.SCSExecution.defaultContext]]. The cookie is encoded only if the result doesn't set
+ * it already and the state is changed or the received SCS is not fresh (see
+ * [[com.identityblitz.scs.SCSService.isFresh]]).
  */
-object SCSEnabledAction extends ActionBuilder[SCSRequest] {
-  private final val SCS_COOKIE_NAME = service.getConfiguration
-    .getString(ConfigParameter.SCS_COOKIE_NAME.key, "SCS")
-  private final val DOMAIN = Option(service.getConfiguration.getString(ConfigParameter.DOMAIN.key))
-  private final val IS_SECURE: Boolean = service.getConfiguration.getBoolean(ConfigParameter.IS_SECURE.key, false)
-  private final val PATH = service.getConfiguration.getString(ConfigParameter.PATH.key, "/")
+class SCSEnabledAction(val scsService: SCSService, cryptoContext: ExecutionContext) extends ActionBuilder[SCSRequest] {
+  private final val SCS_COOKIE_NAME = scsService.getCookieName
+  private val mayWait = SCSExecution.mayWait(cryptoContext)
 
-  val scsService = new SCSService
-  scsService.init(service.getConfiguration.getBoolean(ConfigParameter.USE_COMPRESSION.key, false), null)
+  def this(scsService: SCSService) = this(scsService, SCSExecution.defaultContext())
 
   def invokeBlock[A](request: Request[A], block: (SCSRequest[A]) => Future[Result]): Future[Result] = {
     request match {
       case sr: SCSRequest[A] => block(sr)
+      case r: Request[A] if scsService.isExcluded(r.method, r.path, 0) =>
+        getLogger.debug("Request {} is excluded from SCS processing.", r.path)
+        block(new SCSRequest(None, r))
       case r: Request[A] =>
         request.cookies.get(SCS_COOKIE_NAME).map(c => {
-          Try[String]{
-            val session = scsService.decode(c.value)
-            getLogger.debug("SCS [{}] is extracted from request cookie.", session)
-            session.getData}.map(s => callBlockWithState(request, block, Some(s)))
-            .recover {
-            case b: SCSBrokenException =>
+          Future(Try(decode(c.value)))(cryptoContext).flatMap {
+            case Success(session) =>
+              getLogger.debug("SCS [{}] is extracted from request cookie.", session)
+              callBlockWithState(request, block, Some(session), hadCookie = true)
+            case Failure(b: SCSBrokenException) =>
               getLogger.error("Got broken SCS cookie: " + b.getMessage)
-              Future.successful(Results.BadRequest
-                .discardingCookies(DiscardingCookie(SCS_COOKIE_NAME, PATH, DOMAIN, IS_SECURE)))
-            case e: SCSExpiredException =>
+              Future.successful(Results.BadRequest.discardingCookies(SCSResults.discarding(scsService)))
+            case Failure(e: SCSExpiredException) =>
               getLogger.info("Got expired SCS cookie: " + e.getMessage)
-              callBlockWithState(request, block)
-            case s: SCSException =>
+              callBlockWithState(request, block, None, hadCookie = true)
+            case Failure(r: SCSRejectedException) if scsService.isShedAsAbsent =>
+              getLogger.debug("SCS decoding is shed, request {} is processed without session.", request.path)
+              callBlockWithState(request, block, None, hadCookie = false)
+            case Failure(r: SCSRejectedException) =>
+              getLogger.debug("SCS decoding is shed, request {} is rejected.", request.path)
+              Future.successful(Results.ServiceUnavailable)
+            case Failure(s: SCSException) =>
               getLogger.error(s.getMessage)
               Future.successful(Results.InternalServerError)
-            case o => throw o
-          }.get
-        }).getOrElse(callBlockWithState(request, block))
+            case Failure(o) => Future.failed(o)
+          }(trampoline)
+        }).getOrElse(callBlockWithState(request, block, None, hadCookie = false))
     }
   }
 
+  /**
+   * Decodes the SCS cookie. The decoding run on the calling thread never waits for a permit of the bulkhead.
+   */
+  private def decode(value: String): SCSession =
+    if(mayWait) scsService.decode(value) else scsService.decodeWithoutWaiting(value)
+
   def callBlockWithState[A](request: Request[A],
                             block: (SCSRequest[A]) => Future[Result],
-                            state: Option[String] = None): Future[Result] = {
-    val scs = new SCSRequest(state, request)
-    block(scs).map(res => scs.getSCS.map(s => {
-      val session = scsService.encode(s)
-      if(!Cookies.decode(res.header.headers.get(HeaderNames.SET_COOKIE).getOrElse("")).exists(_.name == SCS_COOKIE_NAME)) {
-        getLogger.debug("session state is stored into SCS cookie {}.", session)
-        res.withCookies(Cookie(SCS_COOKIE_NAME, session.asString, None, PATH, DOMAIN, IS_SECURE, httpOnly = true))
-      }
-      else {
-        getLogger.debug("session state is already committed.")
-        res
-      }
-    }).getOrElse{
-      if(!Cookies.decode(res.header.headers.get(HeaderNames.SET_COOKIE).getOrElse("")).exists(_.name == SCS_COOKIE_NAME)) {
-        getLogger.debug("there is no session state to store in SCS cookie.")
-        res.discardingCookies(DiscardingCookie(SCS_COOKIE_NAME, PATH, DOMAIN, IS_SECURE))
-      }
-      else {
-        getLogger.debug("session state is already committed.")
-        res
-      }
-    })
+                            received: Option[SCSession],
+                            hadCookie: Boolean): Future[Result] = {
+    val scs = new SCSRequest(received.map(_.getData), request, scsService.isVerifyOnly)
+    block(scs).map(res => SCSResults.storeState(scsService, res, scs.getSCS, received, hadCookie))(cryptoContext)
   }
 }
 
-class SCSRequest[A](private var state: Option[String], request: Request[A]) extends WrappedRequest[A](request) {
-  def getSCS = state
-  def changeSCS(newState: Option[String]) = {state = newState}
+object SCSEnabledAction extends SCSEnabledAction(SCSService.getDefault)
+
+/**
+ * The request carrying the current SCS state. The state is kept in an atomic reference, so it can be read and changed
+ * from the callbacks of the futures running on different threads. The state of the request processed in
+ * the verify-only mode can't be changed.
+ */
+class SCSRequest[A](initialState: Option[String], request: Request[A], readOnly: Boolean)
+  extends WrappedRequest[A](request) {
+  private val state = new AtomicReference[Option[String]](initialState)
+
+  def this(initialState: Option[String], request: Request[A]) = this(initialState, request, false)
+
+  def getSCS: Option[String] = state.get
+
+  def changeSCS(newState: Option[String]) {
+    if(readOnly) throw new IllegalStateException("SCS can't be changed in the verify-only mode")
+    state.set(newState)
+  }
 }
 
 object SCSRequest {
@@ -0,0 +1,113 @@
+package com.identityblitz.scs.glue.play
+
+import com.identityblitz.scs.{CookieUtils, SCSService, SCSession}
+import com.identityblitz.scs.error.{SCSException, SCSExpiredException, SCSBrokenException, SCSRejectedException}
+import com.identityblitz.scs.LoggingUtils._
+import play.api.libs.iteratee.{Done, Input, Iteratee}
+import play.api.libs.iteratee.Execution.trampoline
+import play.api.mvc._
+import play.mvc.Http.HeaderNames
+import scala.concurrent.{ExecutionContext, Future}
+import scala.util.{Failure, Success, Try}
+
+/**
+ * The global Play framework filter adding the SCS functionality to all the actions of the application, so they
+ * don't need to opt in with [[com.identityblitz.scs.glue.play.SCSEnabled]] or
+ * [[com.identityblitz.scs.glue.play.SCSEnabledAction]], which must not be combined with the filter.
+ * The filter works at the header level only. The SCS cookie is decoded from the request header before the body is
+ * parsed, and a request with a broken cookie is rejected with the BAD REQUEST status without consuming its body.
+ * On the way out only the result headers are transformed.
+ * The state is available to the Java actions through [[com.identityblitz.scs.SCSService.getSCS]] and
+ * [[com.identityblitz.scs.SCSService.changeSCS]] called with the HTTP context, and to the Scala actions through
+ * the methods of the companion object called with the request. Play 2.3 request headers can't carry mutable
+ * attributes, so the state is kept in [[com.identityblitz.scs.glue.play.SCSRequestStates]] by the request identifier
+ * while the request is processed.
+ * The SCS cookie is decoded and encoded on the passed execution context, by default on
+ * [[com.identityblitz.scs.glue.play.SCSExecution.defaultContext]].
+ * If the service is in the verify-only mode (see [[com.identityblitz.scs.SCSService.isVerifyOnly]]), the results are
+ * returned as is and the session state can't be changed.
+ * If the SCS decoding is shed by the bulkhead of the service (see [[com.identityblitz.scs.Bulkhead]]), the request is
+ * processed as if it had no SCS cookie or answered with the SERVICE UNAVAILABLE status according to the fallback of
+ * the bulkhead.
+ */
+class SCSFilter(val scsService: SCSService, cryptoContext: ExecutionContext) extends EssentialFilter {
+
+  def this(scsService: SCSService) = this(scsService, SCSExecution.defaultContext())
+
+  def this() = this(SCSService.getDefault)
+
+  private val mayWait = SCSExecution.mayWait(cryptoContext)
+
+  def apply(next: EssentialAction): EssentialAction = EssentialAction { rh =>
+    if(scsService.isExcluded(rh.method, rh.path, 0)) {
+      getLogger.debug("Request {} is excluded from SCS processing.", rh.path)
+      next(rh)
+    }
+    else Option(CookieUtils.findCookieValue(rh.headers.get(HeaderNames.COOKIE).orNull, scsService.getCookieName)) match {
+      case Some(value) =>
+        Iteratee.flatten(Future(Try(decode(value)))(cryptoContext).map[Iteratee[Array[Byte], Result]] {
+          case Success(session) =>
+            getLogger.debug("SCS [{}] is extracted from request cookie.", session)
+            nextWithState(next, rh, Some(session), hadCookie = true)
+          case Failure(b: SCSBrokenException) =>
+            getLogger.error("Got broken SCS cookie: " + b.getMessage)
+            Done(Results.BadRequest.discardingCookies(SCSResults.discarding(scsService)), Input.Empty)
+          case Failure(e: SCSExpiredException) =>
+            getLogger.info("Got expired SCS cookie: " + e.getMessage)
+            nextWithState(next, rh, None, hadCookie = true)
+          case Failure(r: SCSRejectedException) if scsService.isShedAsAbsent =>
+            getLogger.debug("SCS decoding is shed, request {} is processed without session.", rh.path)
+            nextWithState(next, rh, None, hadCookie = false)
+          case Failure(r: SCSRejectedException) =>
+            getLogger.debug("SCS decoding is shed, request {} is rejected.", rh.path)
+            Done(Results.ServiceUnavailable, Input.Empty)
+          case Failure(s: SCSException) =>
+            getLogger.error(s.getMessage)
+            Done(Results.InternalServerError, Input.Empty)
+          case Failure(o) => throw o
+        }(trampoline))
+      case None =>
+        nextWithState(next, rh, None, hadCookie = false)
+    }
+  }
+
+  /**
+   * Decodes the SCS cookie. The decoding run on the calling thread, which may be a Netty I/O thread, never waits for
+   * a permit of the bulkhead.
+   */
+  private def decode(value: String): SCSession =
+    if(mayWait) scsService.decode(value) else scsService.decodeWithoutWaiting(value)
+
+  private def nextWithState(next: EssentialAction, rh: RequestHeader, received: Option[SCSession],
+                            hadCookie: Boolean): Iteratee[Array[Byte], Result] = {
+    val id = rh.id
+    val state = SCSRequestStates.register(id, received.map(_.getData).orNull, scsService.isVerifyOnly)
+    next(rh).map { res =>
+      SCSRequestStates.remove(id)
+      SCSResults.storeState(scsService, res, Option(state.get), received, hadCookie)
+    }(cryptoContext).recover[Result] { case e =>
+      SCSRequestStates.remove(id)
+      throw e
+    }(trampoline)
+  }
+}
+
+object SCSFilter {
+
+  /**
+   * Returns the current SCS state of the request processed by the filter.
+   * @param rh - request header.
+   * @return - current state.
+   */
+  def getSCS(rh: RequestHeader): Option[String] = Option(SCSRequestStates.get(rh.id)).flatMap(h => Option(h.get))
+
+  /**
+   * Changes the current SCS state of the request processed by the filter.
+   * @param rh - request header.
+   * @param state - new state.
+   * @throws IllegalStateException - if the service is in the verify-only mode.
+   */
+  def changeSCS(rh: RequestHeader, state: Option[String]) {
+    SCSRequestStates.change(rh.id, state.orNull)
+  }
+}
@@ -0,0 +1,47 @@
+package com.identityblitz.scs.glue.play
+
+import com.identityblitz.scs.{CookieUtils, SCSService, SCSession}
+import com.identityblitz.scs.LoggingUtils._
+import play.api.mvc.{Cookie, DiscardingCookie, Result}
+import play.mvc.Http.HeaderNames
+
+/**
+ * Stores the SCS state into the results of the Play Scala glue. Only the result headers are transformed.
+ */
+private[play] object SCSResults {
+
+  /**
+   * Sets the SCS cookie to the result unless the result already sets it. The state is encoded only if it is changed
+   * or the received SCS is not fresh, the cookie is discarded if there is no state but the request had the cookie.
+   * In the verify-only mode the result is returned as is.
+   */
+  def storeState(scsService: SCSService, res: Result, state: Option[String], received: Option[SCSession],
+                 hadCookie: Boolean): Result = {
+    val name = scsService.getCookieName
+    if(scsService.isVerifyOnly) {
+      res
+    }
+    else if(res.header.headers.get(HeaderNames.SET_COOKIE).exists(CookieUtils.containsSetCookieOf(_, name))) {
+      getLogger.debug("session state is already committed.")
+      res
+    }
+    else state match {
+      case Some(s) if received.exists(r => r.getData == s && scsService.isFresh(r)) =>
+        getLogger.debug("session state is not changed, SCS cookie is kept.")
+        res
+      case Some(s) =>
+        val session = scsService.encode(s)
+        getLogger.debug("session state is stored into SCS cookie {}.", session)
+        res.withCookies(Cookie(name, session.asString, None, scsService.getPath, Option(scsService.getDomain),
+          scsService.isSecure, httpOnly = true))
+      case None if hadCookie =>
+        getLogger.debug("there is no session state to store in SCS cookie.")
+        res.discardingCookies(discarding(scsService))
+      case None =>
+        res
+    }
+  }
+
+  def discarding(scsService: SCSService): DiscardingCookie =
+    DiscardingCookie(scsService.getCookieName, scsService.getPath, Option(scsService.getDomain), scsService.isSecure)
+}
@@ -0,0 +1,30 @@
+package com.identityblitz.scs;
+
+import com.identityblitz.scs.error.SCSBrokenException;
+import junit.framework.Assert;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class Base64UrlTest {
+
+    @Test
+    public void encodeDecodeTest() throws SCSBrokenException {
+        final Random random = new Random(42);
+        for(int length = 0; length < 70; length++) {
+            final byte[] data = new byte[length];
+            random.nextBytes(data);
+            final String encoded = Base64Url.encodeToString(data);
+            Assert.assertEquals(Base64.encodeBase64URLSafeString(data), encoded);
+            Assert.assertEquals(encoded.length(), Base64Url.encodedLength(length));
+            org.junit.Assert.assertArrayEquals(data, Base64Url.decode("|" + encoded + "|", 1, encoded.length() + 1));
+        }
+    }
+
+    @Test(expected = SCSBrokenException.class)
+    public void wrongCharacterTest() throws SCSBrokenException {
+        Base64Url.decode("ab+d", 0, 4);
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.identityblitz.scs;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class CookieUtilsTest {
+
+    @Test
+    public void findCookieValueTest() {
+        Assert.assertEquals("v1|v2", CookieUtils.findCookieValue("SCS=v1|v2", "SCS"));
+        Assert.assertEquals("v", CookieUtils.findCookieValue("a=b; SCS=v; c=d", "SCS"));
+        Assert.assertEquals("v", CookieUtils.findCookieValue("a=b;SCS = v ;c=d", "SCS"));
+        Assert.assertEquals("v", CookieUtils.findCookieValue("$Version=1, SCS=v, c=d", "SCS"));
+        Assert.assertEquals("v;x", CookieUtils.findCookieValue("a=b; SCS=\"v;x\"; c=d", "SCS"));
+        Assert.assertEquals("", CookieUtils.findCookieValue("a=b; SCS=", "SCS"));
+    }
+
+    @Test
+    public void cookieNotFoundTest() {
+        Assert.assertNull(CookieUtils.findCookieValue(null, "SCS"));
+        Assert.assertNull(CookieUtils.findCookieValue("", "SCS"));
+        Assert.assertNull(CookieUtils.findCookieValue("XSCS=v; SCSX=v; a=SCS", "SCS"));
+        Assert.assertNull(CookieUtils.findCookieValue("SCS; a=b", "SCS"));
+    }
+
+    @Test
+    public void isSetCookieOfTest() {
+        Assert.assertTrue(CookieUtils.isSetCookieOf("SCS=v; Path=/", "SCS"));
+        Assert.assertTrue(CookieUtils.isSetCookieOf(" SCS =v", "SCS"));
+        Assert.assertFalse(CookieUtils.isSetCookieOf("SCSX=v", "SCS"));
+        Assert.assertFalse(CookieUtils.isSetCookieOf("a=SCS", "SCS"));
+        Assert.assertFalse(CookieUtils.isSetCookieOf("SCS", "SCS"));
+    }
+
+    @Test
+    public void containsSetCookieOfTest() {
+        Assert.assertTrue(CookieUtils.containsSetCookieOf("SCS=v; Path=/", "SCS"));
+        Assert.assertTrue(CookieUtils.containsSetCookieOf("a=b; Path=/;;SCS=v; Path=/", "SCS"));
+        Assert.assertTrue(CookieUtils.containsSetCookieOf("a=b; Expires=Wed, 09 Jun 2021 10:18:14 GMT, SCS=v", "SCS"));
+        Assert.assertFalse(CookieUtils.containsSetCookieOf("a=b; Expires=Wed, 09 Jun 2021 10:18:14 GMT", "SCS"));
+        Assert.assertFalse(CookieUtils.containsSetCookieOf("a=SCS; XSCS=v;;b=SCS=", "SCS"));
+    }
+
+    @Test
+    public void removeCookieTest() {
+        Assert.assertEquals("a=1; b=\"x;y\"", CookieUtils.removeCookie("a=1; SCS=v; b=\"x;y\"", "SCS"));
+        Assert.assertEquals("a=1; SCSX=2", CookieUtils.removeCookie("SCS = v,a=1;SCSX=2", "SCS"));
+        Assert.assertEquals("a=1", CookieUtils.removeCookie("a=1", "SCS"));
+        Assert.assertNull(CookieUtils.removeCookie(" SCS=v ", "SCS"));
+    }
+
+}
@@ -0,0 +1,27 @@
+package com.identityblitz.scs;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import static com.identityblitz.scs.OffloadPolicy.Operation.DECODE;
+import static com.identityblitz.scs.OffloadPolicy.Operation.ENCODE;
+
+public class OffloadPolicyTest {
+
+    @Test
+    public void operationsAreEstimatedSeparatelyTest() {
+        final OffloadPolicy policy = new OffloadPolicy(50000, 512);
+        Assert.assertFalse(policy.isExpensive(DECODE, 4096));
+
+        // a decoding of 1000 bytes taking 100 microseconds costs 100 nanoseconds a byte
+        policy.record(DECODE, 1000, 100000);
+        Assert.assertTrue(policy.isExpensive(DECODE, 1000));
+        Assert.assertFalse(policy.isExpensive(DECODE, 256));
+        Assert.assertFalse(policy.isExpensive(ENCODE, 4096));
+
+        policy.record(ENCODE, 1000, 1000);
+        Assert.assertFalse(policy.isExpensive(ENCODE, 4096));
+        Assert.assertTrue(policy.isExpensive(DECODE, 1000));
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.identityblitz.scs;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class RequestMatcherTest {
+
+    @Test
+    public void pathTest() {
+        final RequestMatcher matcher = RequestMatcher.compile("/health, /static/**, /assets**");
+        Assert.assertTrue(matcher.matches("GET", "/health", 0));
+        Assert.assertTrue(matcher.matches("GET", "/health?full=true", 0));
+        Assert.assertTrue(matcher.matches("GET", "/app/health", 4));
+        Assert.assertFalse(matcher.matches("GET", "/healthz", 0));
+        Assert.assertFalse(matcher.matches("GET", "/", 0));
+        Assert.assertTrue(matcher.matches("POST", "/static/js/app.js", 0));
+        Assert.assertFalse(matcher.matches("GET", "/static", 0));
+        Assert.assertTrue(matcher.matches("GET", "/assets-v2/logo.png", 0));
+    }
+
+    @Test
+    public void patternTest() {
+        final RequestMatcher matcher = RequestMatcher.compile("*.css, *.ico, /api/*/metrics, /docs/**/index.html");
+        Assert.assertTrue(matcher.matches("GET", "/site.css", 0));
+        Assert.assertTrue(matcher.matches("GET", "/a/b/FAVICON.ICO?v=1", 0));
+        Assert.assertFalse(matcher.matches("GET", "/site.css/page", 0));
+        Assert.assertFalse(matcher.matches("GET", "/style.scss", 0));
+        Assert.assertTrue(matcher.matches("GET", "/api/orders/metrics", 0));
+        Assert.assertFalse(matcher.matches("GET", "/api/orders/v1/metrics", 0));
+        Assert.assertTrue(matcher.matches("GET", "/docs/index.html", 0));
+        Assert.assertTrue(matcher.matches("GET", "/docs/a/b/index.html", 0));
+    }
+
+    @Test
+    public void methodTest() {
+        final RequestMatcher matcher = RequestMatcher.compile("GET|HEAD /health, OPTIONS *");
+        Assert.assertTrue(matcher.matches("HEAD", "/health", 0));
+        Assert.assertFalse(matcher.matches("POST", "/health", 0));
+        Assert.assertTrue(matcher.matches("OPTIONS", "/any/path", 0));
+        Assert.assertFalse(matcher.matches("PROPFIND", "/health", 0));
+    }
+
+    @Test
+    public void emptyTest() {
+        Assert.assertTrue(RequestMatcher.compile(null).isEmpty());
+        Assert.assertTrue(RequestMatcher.compile(" , ").isEmpty());
+        Assert.assertFalse(RequestMatcher.compile("/health").isEmpty());
+        Assert.assertFalse(RequestMatcher.EMPTY.matches("GET", "/health", 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedRuleTest() {
+        RequestMatcher.compile("health");
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.identityblitz.scs;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class SCSContextTest {
+
+    @Test
+    public void nestedBindTest() {
+        final SCSContext outer = new StateContext("outer state");
+        final SCSContext inner = new StateContext("inner state");
+        Assert.assertNull(SCSContext.current());
+
+        final SCSContext beforeOuter = SCSContext.bind(outer);
+        Assert.assertNull(beforeOuter);
+        final SCSContext beforeInner = SCSContext.bind(inner);
+        Assert.assertSame(outer, beforeInner);
+        Assert.assertEquals("inner state", SCSContext.current().getSCS());
+
+        SCSContext.restore(beforeInner);
+        Assert.assertSame(outer, SCSContext.current());
+        SCSContext.restore(beforeOuter);
+        Assert.assertNull(SCSContext.current());
+    }
+
+    @Test
+    public void wrapTest() throws InterruptedException {
+        final SCSContext context = new StateContext("issued state");
+        final String[] seen = new String[1];
+        final Thread thread = new Thread(context.wrap(new Runnable() {
+            @Override
+            public void run() {
+                seen[0] = SCSContext.current().getSCS();
+                SCSContext.current().changeSCS("changed state");
+            }
+        }));
+        thread.start();
+        thread.join();
+        Assert.assertEquals("issued state", seen[0]);
+        Assert.assertEquals("changed state", context.getSCS());
+        Assert.assertNull(SCSContext.current());
+
+        final SCSContext previous = SCSContext.bind(new StateContext("outer state"));
+        try {
+            context.wrap(new Runnable() {
+                @Override
+                public void run() {
+                    seen[0] = SCSContext.current().getSCS();
+                }
+            }).run();
+            Assert.assertEquals("changed state", seen[0]);
+            Assert.assertEquals("outer state", SCSContext.current().getSCS());
+        } finally {
+            SCSContext.restore(previous);
+        }
+    }
+
+    private static final class StateContext extends SCSContext {
+        private String state;
+
+        private StateContext(final String state) {
+            this.state = state;
+        }
+
+        @Override
+        public String getSCS() {
+            return state;
+        }
+
+        @Override
+        public void changeSCS(final String session) {
+            this.state = session;
+        }
+    }
+}
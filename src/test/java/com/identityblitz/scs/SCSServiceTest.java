@@ -1,6 +1,11 @@
 package com.identityblitz.scs;
 
+import com.identityblitz.scs.error.SCSBrokenException;
 import com.identityblitz.scs.error.SCSException;
+import com.identityblitz.scs.error.SCSRejectedException;
+import com.identityblitz.scs.glue.BasicConfigurationService;
+import com.identityblitz.scs.glue.BasicCryptoService;
+import com.identityblitz.scs.service.spi.CryptoTransformationService;
 import junit.framework.Assert;
 import org.easymock.Capture;
 import org.easymock.EasyMock;
@@ -10,6 +15,12 @@ import org.junit.Test;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 public class SCSServiceTest {
 
@@ -130,4 +141,174 @@ public class SCSServiceTest {
         Assert.assertEquals("SCS", capturedCookie.getValue().getName());
     }
 
+    @Test
+    public void scsSCSServiceBuilderTest() throws SCSException {
+        final String SESSION_STATE = "some session state";
+        final SCSService service = SCSService.builder()
+                .cryptoService(new BasicCryptoService("0123456789abcdef".getBytes(), "01234567890123456789".getBytes()))
+                .cookieName("TENANT_SCS")
+                .domain("example.com")
+                .path("/app")
+                .secure(true)
+                .useCompression(true)
+                .sessionMaxAge(60L)
+                .build();
+
+        HttpServletRequest requestMock = EasyMock.createMock(HttpServletRequest.class);
+        EasyMock.expect(requestMock.getAttribute("com.identityblitz.scs.requestAttribute")).andReturn(SESSION_STATE);
+
+        HttpServletResponse responseMock = EasyMock.createMock(HttpServletResponse.class);
+        Capture<Cookie> capturedCookie = new Capture<Cookie>();
+        responseMock.addCookie(EasyMock.capture(capturedCookie));
+        EasyMock.expectLastCall();
+
+        EasyMock.replay(requestMock, responseMock);
+        service.putIntoDownstream(responseMock, requestMock);
+
+        final Cookie cookie = capturedCookie.getValue();
+        Assert.assertEquals("TENANT_SCS", cookie.getName());
+        Assert.assertEquals("example.com", cookie.getDomain());
+        Assert.assertEquals("/app", cookie.getPath());
+        Assert.assertTrue(cookie.getSecure());
+        Assert.assertEquals(SESSION_STATE, service.decode(cookie.getValue()).getData());
+    }
+
+    @Test
+    public void asyncTest() throws Exception {
+        final OffloadPolicy policy = new OffloadPolicy(1000, 0);
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        final SCSService service = SCSService.builder()
+                .cryptoService(new BasicCryptoService("0123456789abcdef".getBytes(), "01234567890123456789".getBytes()))
+                .asyncExecutor(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        if(!queued.isEmpty())
+                            throw new RejectedExecutionException("queue is full");
+                        queued.add(command);
+                    }
+                }, policy)
+                .build();
+
+        final Future<SCSession> inline = service.encodeAsync("some state", null);
+        Assert.assertTrue(inline.isDone());
+        Assert.assertTrue(queued.isEmpty());
+
+        policy.record(OffloadPolicy.Operation.DECODE, 1, 1000000);
+        final SCSException[] failure = new SCSException[1];
+        final Future<SCSession> offloaded = service.decodeAsync("broken", new SCSCallback<SCSession>() {
+            @Override
+            public void onSuccess(SCSession result) {}
+
+            @Override
+            public void onFailure(SCSException e) {
+                failure[0] = e;
+            }
+        });
+        Assert.assertFalse(offloaded.isDone());
+        Assert.assertEquals(1, queued.size());
+        queued.get(0).run();
+        Assert.assertTrue(failure[0] instanceof SCSBrokenException);
+
+        final Future<SCSession> rejected = service.decodeAsync(inline.get().asString(), null);
+        try {
+            rejected.get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof SCSRejectedException);
+        }
+    }
+
+    @Test
+    public void asyncErrorTest() throws Exception {
+        final SCSService service = SCSService.builder()
+                .cryptoService(new BasicCryptoService("0123456789abcdef".getBytes(), "01234567890123456789".getBytes()) {
+                    @Override
+                    public byte[] encrypt(String tid, byte[] iv, byte[] plainText) {
+                        throw new AssertionError("provider is broken");
+                    }
+                })
+                .build();
+        final SCSException[] failure = new SCSException[1];
+        final Future<SCSession> failed = service.encodeAsync("some state", new SCSCallback<SCSession>() {
+            @Override
+            public void onSuccess(SCSession result) {}
+
+            @Override
+            public void onFailure(SCSException e) {
+                failure[0] = e;
+            }
+        });
+        Assert.assertTrue(failed.isDone());
+        Assert.assertNotNull(failure[0]);
+        try {
+            failed.get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof AssertionError);
+        }
+    }
+
+    @Test
+    public void bulkheadTest() throws Exception {
+        final Bulkhead bulkhead = new Bulkhead(1, 0, 0, Bulkhead.Fallback.REJECT);
+        final SCSService service = SCSService.builder()
+                .cryptoService(new BasicCryptoService("0123456789abcdef".getBytes(), "01234567890123456789".getBytes()))
+                .bulkhead(bulkhead)
+                .build();
+        final String scs = service.encode("state").asString();
+        Assert.assertFalse(service.isShedAsAbsent());
+
+        bulkhead.acquire(true);
+        try {
+            service.decode(scs);
+            Assert.fail();
+        } catch (SCSRejectedException e) {}
+        Assert.assertEquals(1, bulkhead.getActive());
+        Assert.assertEquals(1L, bulkhead.getShedCount());
+        // encoding is not bounded
+        Assert.assertNotNull(service.encode("state"));
+        bulkhead.release();
+
+        Assert.assertEquals("state", service.decode(scs).getData());
+        Assert.assertEquals(0, bulkhead.getActive());
+        Assert.assertEquals(1L, bulkhead.getShedCount());
+    }
+
+    @Test
+    public void bulkheadDoesNotQueueWithoutWaitingTest() throws Exception {
+        final Bulkhead bulkhead = new Bulkhead(1, 10, 1000, Bulkhead.Fallback.ABSENT);
+        final SCSService service = SCSService.builder()
+                .cryptoService(new BasicCryptoService("0123456789abcdef".getBytes(), "01234567890123456789".getBytes()))
+                .bulkhead(bulkhead)
+                .build();
+        final String scs = service.encode("state").asString();
+        bulkhead.acquire(true);
+        final long start = System.currentTimeMillis();
+        try {
+            service.decodeWithoutWaiting(scs);
+            Assert.fail();
+        } catch (SCSRejectedException e) {}
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+        Assert.assertEquals(0, bulkhead.getQueued());
+        bulkhead.release();
+        Assert.assertEquals("state", service.decodeWithoutWaiting(scs).getData());
+    }
+
+    @Test
+    public void bulkheadConfigurationTest() throws Exception {
+        final CryptoTransformationService crypto =
+                new BasicCryptoService("0123456789abcdef".getBytes(), "01234567890123456789".getBytes());
+        System.setProperty(ConfigParameter.BULKHEAD_MAX_CONCURRENT.key(), "2");
+        try {
+            Assert.assertNotNull(SCSService.builder().configuration(new BasicConfigurationService())
+                    .cryptoService(crypto).build().getBulkhead());
+            Assert.assertNull(SCSService.builder().configuration(new BasicConfigurationService())
+                    .cryptoService(crypto).bulkhead(null).build().getBulkhead());
+            // the discovered configuration is not read for the bulkhead
+            Assert.assertNull(SCSService.builder().cryptoService(crypto).build().getBulkhead());
+        } finally {
+            System.clearProperty(ConfigParameter.BULKHEAD_MAX_CONCURRENT.key());
+        }
+    }
+
 }
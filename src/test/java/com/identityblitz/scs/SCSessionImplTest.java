@@ -57,7 +57,7 @@ public class SCSessionImplTest {
 
         SimpleCryptoService cryptoService = new SimpleCryptoService();
         cryptoService.init("PZ84RGBeLN_S9n-sViQTnQ", encKey, hmacKey);
-        SCSession session = new SCSessionImpl(false, cryptoService, originalScs, null);
+        SCSession session = new SCSessionImpl(false, cryptoService, originalScs, null, fixedClock(atime));
 
         Assert.assertEquals(state, session.getData());
         Assert.assertEquals(new Date(atime * 1000), session.getAtime());
@@ -75,7 +75,7 @@ public class SCSessionImplTest {
 
         SimpleCryptoService cryptoService = new SimpleCryptoService();
         cryptoService.init("uWArYb9mV08tboY8DSVylA", encKey, hmacKey);
-        SCSession session = new SCSessionImpl(true, cryptoService, originalScs, null);
+        SCSession session = new SCSessionImpl(true, cryptoService, originalScs, null, fixedClock(atime));
 
         Assert.assertEquals(originalScs, session.asString());
         Assert.assertEquals(state, session.getData());
@@ -110,4 +110,13 @@ public class SCSessionImplTest {
         new SCSessionImpl(false, cryptoService, session.asString(), 3 * 60L);
     }
 
+    private static Clock fixedClock(final long atimeInSec) {
+        return new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return (atimeInSec + 60) * 1000;
+            }
+        };
+    }
+
 }
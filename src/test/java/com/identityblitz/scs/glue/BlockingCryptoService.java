@@ -0,0 +1,62 @@
+package com.identityblitz.scs.glue;
+
+import com.identityblitz.scs.SCSService;
+import com.identityblitz.scs.error.SCSException;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The cryptographic service which HMAC verification can be held, so a decoding run on another thread keeps
+ * the permit of the bulkhead of the service till it is released.
+ */
+public class BlockingCryptoService extends BasicCryptoService {
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch released = new CountDownLatch(1);
+    private volatile boolean blocking;
+
+    public BlockingCryptoService() {
+        super("0123456789abcdef".getBytes(), "01234567890123456789".getBytes());
+    }
+
+    /**
+     * Starts decoding the passed SCS on another thread and waits till the decoding takes the permit.
+     * @param service - service to decode with.
+     * @param scs - SCS to decode.
+     * @return - thread holding the permit.
+     */
+    public Thread occupy(final SCSService service, final String scs) throws InterruptedException {
+        blocking = true;
+        final Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    service.decode(scs);
+                } catch (SCSException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        holder.start();
+        entered.await();
+        return holder;
+    }
+
+    public void release(final Thread holder) throws InterruptedException {
+        released.countDown();
+        holder.join();
+    }
+
+    @Override
+    public boolean verifyHmac(final String tid, final byte[] tag, final String msg) {
+        if(blocking) {
+            blocking = false;
+            entered.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return super.verifyHmac(tid, tag, msg);
+    }
+}
@@ -0,0 +1,80 @@
+package com.identityblitz.scs.glue.httpserver;
+
+import com.identityblitz.scs.SCSService;
+import com.identityblitz.scs.glue.BasicCryptoService;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+public class SCSFilterTest {
+    private final SCSService scsService = SCSService.builder()
+            .cryptoService(new BasicCryptoService("0123456789abcdef".getBytes(), "01234567890123456789".getBytes()))
+            .cookieName("SCS")
+            .path("/")
+            .sessionMaxAge(3600L)
+            .exclude("/health")
+            .build();
+
+    private HttpServer server;
+    private final String[] received = new String[1];
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        final HttpHandler handler = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if(exchange instanceof SCSHttpExchange) {
+                    received[0] = SCSService.getSCS(exchange);
+                    SCSService.changeSCS(exchange, "new state");
+                }
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        };
+        server.createContext("/", handler).getFilters().add(new SCSFilter(scsService));
+        final HttpContext health = server.createContext("/health", handler);
+        health.getFilters().add(new SCSFilter(scsService));
+        server.start();
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    @Test
+    public void requestTest() throws Exception {
+        final HttpURLConnection connection = open("/page");
+        connection.setRequestProperty("Cookie", "a=b; SCS=" + scsService.encode("old state").asString());
+        Assert.assertEquals(204, connection.getResponseCode());
+        Assert.assertEquals("old state", received[0]);
+        final String setCookie = connection.getHeaderField("Set-Cookie");
+        final String value = setCookie.substring("SCS=".length(), setCookie.indexOf(';'));
+        Assert.assertEquals("new state", scsService.decode(value).getData());
+    }
+
+    @Test
+    public void excludedRequestTest() throws Exception {
+        final HttpURLConnection connection = open("/health");
+        Assert.assertEquals(204, connection.getResponseCode());
+        Assert.assertNull(connection.getHeaderField("Set-Cookie"));
+        Assert.assertNull(received[0]);
+    }
+
+    private HttpURLConnection open(final String path) throws IOException {
+        return (HttpURLConnection)new URL("http://127.0.0.1:" + server.getAddress().getPort() + path)
+                .openConnection();
+    }
+
+}
@@ -0,0 +1,71 @@
+package com.identityblitz.scs.glue.netty.http;
+
+import io.netty.util.concurrent.AbstractEventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The executor keeping the submitted tasks until {@link #runAll()} is called on the test thread, so the tests can
+ * act while an operation is offloaded.
+ */
+class DeferredEventExecutor extends AbstractEventExecutor {
+    private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+
+    void runAll() {
+        Runnable task;
+        while((task = tasks.poll()) != null)
+            task.run();
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        tasks.add(command);
+    }
+
+    @Override
+    public EventExecutorGroup parent() {
+        return this;
+    }
+
+    @Override
+    public boolean inEventLoop(final Thread thread) {
+        return false;
+    }
+
+    @Override
+    public boolean isShuttingDown() {
+        return false;
+    }
+
+    @Override
+    public Future<?> shutdownGracefully(final long quietPeriod, final long timeout, final TimeUnit unit) {
+        return terminationFuture();
+    }
+
+    @Override
+    public Future<?> terminationFuture() {
+        return newSucceededFuture(null);
+    }
+
+    @Override
+    public void shutdown() {}
+
+    @Override
+    public boolean isShutdown() {
+        return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return false;
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) {
+        return true;
+    }
+}
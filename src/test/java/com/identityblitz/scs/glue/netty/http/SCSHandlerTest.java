@@ -0,0 +1,465 @@
+package com.identityblitz.scs.glue.netty.http;
+
+import com.identityblitz.scs.Bulkhead;
+import com.identityblitz.scs.Clock;
+import com.identityblitz.scs.OffloadPolicy;
+import com.identityblitz.scs.SCSContext;
+import com.identityblitz.scs.SCSService;
+import com.identityblitz.scs.TrustedHeader;
+import com.identityblitz.scs.error.SCSException;
+import com.identityblitz.scs.glue.BasicCryptoService;
+import com.identityblitz.scs.glue.BlockingCryptoService;
+import com.identityblitz.scs.tenant.TenantRegistry;
+import com.identityblitz.scs.tenant.TenantServiceFactory;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import junit.framework.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.COOKIE;
+import static io.netty.handler.codec.http.HttpHeaders.Names.SET_COOKIE;
+
+public class SCSHandlerTest {
+    private final SCSService scsService = SCSService.builder()
+            .cryptoService(new BasicCryptoService("0123456789abcdef".getBytes(), "01234567890123456789".getBytes()))
+            .cookieName("SCS")
+            .domain("identityblitz.com")
+            .path("/")
+            .secure(false)
+            .useCompression(false)
+            .sessionMaxAge(3600L)
+            .build();
+
+    @BeforeClass
+    public static void setUp() {
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+    }
+
+    @Test
+    public void requestIsNotCopiedAndReleasedTest() throws SCSException {
+        final EmbeddedChannel channel = new EmbeddedChannel(new SCSHandler(scsService));
+        final FullHttpRequest original = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/",
+                PooledByteBufAllocator.DEFAULT.buffer().writeBytes("body".getBytes()));
+        original.headers().set(COOKIE, "a=b; SCS=" + scsService.encode("some state").asString() + "; c=\"d\"");
+
+        channel.writeInbound(original);
+        final SCSFullHttpRequest request = (SCSFullHttpRequest) channel.readInbound();
+        Assert.assertSame(original.headers(), request.headers());
+        Assert.assertSame(original.content(), request.content());
+        Assert.assertEquals(1, original.refCnt());
+        Assert.assertEquals("some state", SCSService.getSCS(request));
+
+        Assert.assertTrue(request.release());
+        Assert.assertEquals(0, original.refCnt());
+        Assert.assertEquals(0, original.content().refCnt());
+        channel.finish();
+    }
+
+    @Test
+    public void pipelinedRequestsTest() throws SCSException {
+        final SCSHandler handler = new SCSHandler(scsService);
+        new EmbeddedChannel(handler).finish();
+        final EmbeddedChannel channel = new EmbeddedChannel(handler);
+
+        channel.writeInbound(request());
+        channel.writeInbound(request());
+        final SCSFullHttpRequest first = (SCSFullHttpRequest) channel.readInbound();
+        final SCSFullHttpRequest second = (SCSFullHttpRequest) channel.readInbound();
+        SCSService.changeSCS(first, "first state");
+        SCSService.changeSCS(second, "second state");
+        first.release();
+        second.release();
+
+        channel.writeOutbound(response());
+        channel.writeOutbound(response());
+        Assert.assertEquals("first state", scsState((HttpResponse) channel.readOutbound()));
+        Assert.assertEquals("second state", scsState((HttpResponse) channel.readOutbound()));
+        channel.finish();
+    }
+
+    @Test
+    public void streamingRequestTest() throws SCSException {
+        final EmbeddedChannel channel = new EmbeddedChannel(new SCSHandler(scsService));
+        final HttpRequest head = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/upload");
+        head.headers().set(COOKIE, "SCS=" + scsService.encode("some state").asString());
+        final HttpContent chunk = new DefaultHttpContent(Unpooled.copiedBuffer("chunk".getBytes()));
+        channel.writeInbound(head, chunk, LastHttpContent.EMPTY_LAST_CONTENT);
+
+        final SCSHttpRequest request = (SCSHttpRequest) channel.readInbound();
+        Assert.assertEquals("some state", SCSService.getSCS(request));
+        Assert.assertSame(chunk, channel.readInbound());
+        Assert.assertSame(LastHttpContent.EMPTY_LAST_CONTENT, channel.readInbound());
+        chunk.release();
+        SCSService.changeSCS(request, "new state");
+
+        final HttpContent responseChunk = new DefaultHttpContent(Unpooled.copiedBuffer("chunk".getBytes()));
+        channel.writeOutbound(new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK), responseChunk,
+                LastHttpContent.EMPTY_LAST_CONTENT);
+        Assert.assertEquals("new state", scsState((HttpResponse) channel.readOutbound()));
+        Assert.assertSame(responseChunk, channel.readOutbound());
+        responseChunk.release();
+        channel.finish();
+    }
+
+    @Test
+    public void otherCookiesAreNotTouchedTest() throws SCSException {
+        final EmbeddedChannel channel = new EmbeddedChannel(new SCSHandler(scsService));
+        channel.writeInbound(request(), request());
+        final SCSHttpRequest first = (SCSHttpRequest) channel.readInbound();
+        final SCSHttpRequest second = (SCSHttpRequest) channel.readInbound();
+        SCSService.changeSCS(first, "some state");
+        SCSService.changeSCS(second, "some state");
+
+        final FullHttpResponse withOther = response();
+        withOther.headers().add(SET_COOKIE, "a=b; Path=/a, c=d");
+        channel.writeOutbound(withOther);
+        final HttpResponse firstResponse = (HttpResponse) channel.readOutbound();
+        Assert.assertEquals(2, firstResponse.headers().getAll(SET_COOKIE).size());
+        Assert.assertEquals("a=b; Path=/a, c=d", firstResponse.headers().getAll(SET_COOKIE).get(0));
+        Assert.assertTrue(firstResponse.headers().getAll(SET_COOKIE).get(1)
+                .endsWith("; Domain=identityblitz.com; Path=/; HTTPOnly"));
+        Assert.assertEquals("some state", scsState(firstResponse));
+
+        final FullHttpResponse withSCS = response();
+        withSCS.headers().add(SET_COOKIE, "SCS=app value");
+        channel.writeOutbound(withSCS);
+        final HttpResponse secondResponse = (HttpResponse) channel.readOutbound();
+        Assert.assertEquals(1, secondResponse.headers().getAll(SET_COOKIE).size());
+        Assert.assertEquals("SCS=app value", secondResponse.headers().get(SET_COOKIE));
+        channel.finish();
+    }
+
+    @Test
+    public void responseWithoutRequestTest() {
+        final EmbeddedChannel channel = new EmbeddedChannel(new SCSHandler(scsService));
+        channel.writeOutbound(response());
+        final HttpResponse response = (HttpResponse) channel.readOutbound();
+        Assert.assertNull(response.headers().get(SET_COOKIE));
+        channel.finish();
+    }
+
+    @Test
+    public void excludedRequestTest() throws SCSException {
+        final SCSService service = SCSService.builder()
+                .cryptoService(new BasicCryptoService("0123456789abcdef".getBytes(), "01234567890123456789".getBytes()))
+                .exclude("/static/**")
+                .build();
+        final EmbeddedChannel channel = new EmbeddedChannel(new SCSHandler(service));
+        final FullHttpRequest excluded = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+                "http://identityblitz.com/static/app.js");
+        channel.writeInbound(excluded, request());
+        Assert.assertSame(excluded, channel.readInbound());
+        excluded.release();
+        final SCSFullHttpRequest processed = (SCSFullHttpRequest) channel.readInbound();
+        SCSService.changeSCS(processed, "some state");
+        processed.release();
+
+        channel.writeOutbound(response(), response());
+        Assert.assertNull(((HttpResponse) channel.readOutbound()).headers().get(SET_COOKIE));
+        Assert.assertNotNull(((HttpResponse) channel.readOutbound()).headers().get(SET_COOKIE));
+        channel.finish();
+    }
+
+    @Test
+    public void multiplexedStreamsTest() throws SCSException {
+        final EmbeddedChannel channel = new EmbeddedChannel(SCSHandler.builder().service(scsService).http2(true).build());
+        final FullHttpRequest first = request();
+        first.headers().set(SCSHandler.STREAM_ID, "3");
+        first.headers().add(COOKIE, "a=b");
+        first.headers().add(COOKIE, "SCS=" + scsService.encode("first state").asString());
+        final FullHttpRequest second = request();
+        second.headers().set(SCSHandler.STREAM_ID, "5");
+        channel.writeInbound(first, second);
+
+        final SCSFullHttpRequest firstDecoded = (SCSFullHttpRequest) channel.readInbound();
+        final SCSFullHttpRequest secondDecoded = (SCSFullHttpRequest) channel.readInbound();
+        Assert.assertEquals("first state", SCSService.getSCS(firstDecoded));
+        SCSService.changeSCS(secondDecoded, "second state");
+        firstDecoded.release();
+        secondDecoded.release();
+
+        final FullHttpResponse secondResponse = response();
+        secondResponse.headers().set(SCSHandler.STREAM_ID, "5");
+        final FullHttpResponse firstResponse = response();
+        firstResponse.headers().set(SCSHandler.STREAM_ID, "3");
+        channel.writeOutbound(secondResponse, firstResponse);
+        Assert.assertEquals("second state", scsState((HttpResponse) channel.readOutbound()));
+        Assert.assertEquals("first state", scsState((HttpResponse) channel.readOutbound()));
+        channel.finish();
+    }
+
+    @Test
+    public void webSocketSessionTest() throws SCSException {
+        final long[] now = {System.currentTimeMillis()};
+        final SCSService service = SCSService.builder()
+                .cryptoService(new BasicCryptoService("0123456789abcdef".getBytes(), "01234567890123456789".getBytes()))
+                .clock(new Clock() {
+                    @Override
+                    public long currentTimeMillis() {
+                        return now[0];
+                    }
+                })
+                .sessionMaxAge(60L)
+                .build();
+        final EmbeddedChannel channel = new EmbeddedChannel(new SCSHandler(service), new SCSWebSocketHandler());
+        final FullHttpRequest upgrade = request();
+        upgrade.headers().set(HttpHeaders.Names.UPGRADE, HttpHeaders.Values.WEBSOCKET);
+        upgrade.headers().set(COOKIE, "SCS=" + service.encode("some state").asString());
+        channel.writeInbound(upgrade);
+        ((SCSFullHttpRequest) channel.readInbound()).release();
+
+        final SCSWebSocketSession session = SCSWebSocketSession.get(channel);
+        Assert.assertEquals("some state", session.getSCS());
+        final TextWebSocketFrame frame = new TextWebSocketFrame("message");
+        channel.writeInbound(frame);
+        Assert.assertSame(frame, channel.readInbound());
+        frame.release();
+
+        now[0] += 61000L;
+        final TextWebSocketFrame expired = new TextWebSocketFrame("message");
+        channel.writeInbound(expired);
+        Assert.assertNull(channel.readInbound());
+        Assert.assertEquals(0, expired.refCnt());
+        final CloseWebSocketFrame close = (CloseWebSocketFrame) channel.readOutbound();
+        Assert.assertEquals(1008, close.statusCode());
+        close.release();
+        Assert.assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void offloadedRequestsKeepOrderTest() throws SCSException {
+        final OffloadPolicy policy = new OffloadPolicy(0, 0);
+        policy.record(OffloadPolicy.Operation.DECODE, 1, 1000000L);
+        policy.record(OffloadPolicy.Operation.ENCODE, 1, 1000000L);
+        // the embedded event loop is not thread-safe, so the offloaded operations run on the calling thread
+        // and only their results are handed back through the event loop
+        final EmbeddedChannel channel = new EmbeddedChannel(
+                SCSHandler.builder().service(scsService).offload(ImmediateEventExecutor.INSTANCE, policy).build());
+        final FullHttpRequest first = request();
+        first.headers().set(COOKIE, "SCS=" + scsService.encode("first state").asString());
+        channel.writeInbound(first);
+        channel.writeInbound(request());
+
+        final SCSFullHttpRequest firstDecoded = (SCSFullHttpRequest) channel.readInbound();
+        final SCSFullHttpRequest secondDecoded = (SCSFullHttpRequest) channel.readInbound();
+        Assert.assertEquals("first state", SCSService.getSCS(firstDecoded));
+        Assert.assertNull(SCSService.getSCS(secondDecoded));
+        SCSService.changeSCS(secondDecoded, "second state");
+        firstDecoded.release();
+        secondDecoded.release();
+
+        channel.writeOutbound(response());
+        channel.writeOutbound(response());
+        channel.runPendingTasks();
+        Assert.assertEquals("first state", scsState((HttpResponse) channel.readOutbound()));
+        Assert.assertEquals("second state", scsState((HttpResponse) channel.readOutbound()));
+        channel.finish();
+    }
+
+    @Test
+    public void offloadedRequestContextTest() throws SCSException {
+        final OffloadPolicy policy = new OffloadPolicy(0, 0);
+        policy.record(OffloadPolicy.Operation.DECODE, 1, 1000000L);
+        final DeferredEventExecutor executor = new DeferredEventExecutor();
+        final String[] seen = new String[1];
+        final EmbeddedChannel channel = new EmbeddedChannel(
+                SCSHandler.builder().service(scsService).offload(executor, policy).build(),
+                new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+                        seen[0] = SCSContext.current().getSCS();
+                        SCSContext.current().changeSCS("changed state");
+                        ctx.fireChannelRead(msg);
+                    }
+                });
+        final FullHttpRequest request = request();
+        request.headers().set(COOKIE, "SCS=" + scsService.encode("offloaded state").asString());
+        channel.writeInbound(request);
+        Assert.assertNull(seen[0]);
+
+        // the decoding is done on another thread, the context is bound when the request is handed back
+        executor.runAll();
+        channel.runPendingTasks();
+        Assert.assertEquals("offloaded state", seen[0]);
+        Assert.assertNull(SCSContext.current());
+        final SCSFullHttpRequest decoded = (SCSFullHttpRequest) channel.readInbound();
+        Assert.assertEquals("changed state", SCSService.getSCS(decoded));
+        decoded.release();
+        channel.finish();
+    }
+
+    @Test
+    public void forgedStreamIdIsIgnoredTest() throws SCSException {
+        final EmbeddedChannel channel = new EmbeddedChannel(new SCSHandler(scsService));
+        final FullHttpRequest first = request();
+        first.headers().set(SCSHandler.STREAM_ID, "7");
+        first.headers().set(COOKIE, "SCS=" + scsService.encode("state-of-1").asString());
+        final FullHttpRequest second = request();
+        second.headers().set(COOKIE, "SCS=" + scsService.encode("state-of-2").asString());
+        channel.writeInbound(first, second);
+
+        final SCSFullHttpRequest firstDecoded = (SCSFullHttpRequest) channel.readInbound();
+        Assert.assertNull(firstDecoded.headers().get(SCSHandler.STREAM_ID));
+        ((SCSFullHttpRequest) channel.readInbound()).release();
+        firstDecoded.release();
+
+        final FullHttpResponse firstResponse = response();
+        firstResponse.headers().set(SCSHandler.STREAM_ID, "7");
+        channel.writeOutbound(firstResponse, response());
+        Assert.assertEquals("state-of-1", scsState((HttpResponse) channel.readOutbound()));
+        Assert.assertEquals("state-of-2", scsState((HttpResponse) channel.readOutbound()));
+        channel.finish();
+    }
+
+    @Test
+    public void failedOffloadAfterDisconnectTest() throws SCSException {
+        final OffloadPolicy policy = new OffloadPolicy(0, 0);
+        policy.record(OffloadPolicy.Operation.DECODE, 1, 1000000L);
+        final DeferredEventExecutor executor = new DeferredEventExecutor();
+        final EmbeddedChannel channel = new EmbeddedChannel(
+                SCSHandler.builder().service(scsService).offload(executor, policy).build());
+        final FullHttpRequest broken = request();
+        broken.headers().set(COOKIE, "SCS=broken");
+        channel.writeInbound(broken.retain());
+
+        channel.pipeline().fireChannelInactive();
+        executor.runAll();
+        channel.runPendingTasks();
+        Assert.assertEquals(1, broken.refCnt());
+        Assert.assertTrue(broken.release());
+        Assert.assertNull(channel.readInbound());
+    }
+
+    @Test
+    public void rejectedRequestKeepsOrderTest() throws Exception {
+        final BlockingCryptoService crypto = new BlockingCryptoService();
+        final SCSService service = SCSService.builder()
+                .cryptoService(crypto)
+                .cookieName("SCS")
+                .bulkhead(new Bulkhead(1, 0, 0, Bulkhead.Fallback.REJECT))
+                .build();
+        final String scs = service.encode("some state").asString();
+        final EmbeddedChannel channel = new EmbeddedChannel(SCSHandler.builder().service(service).build());
+        channel.writeInbound(request());
+
+        // another request takes the only permit, so the next decoding on the event loop is shed
+        final Thread holder = crypto.occupy(service, scs);
+        final HttpRequest rejected = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/upload");
+        rejected.headers().set(COOKIE, "SCS=" + scs);
+        final HttpContent chunk = new DefaultHttpContent(Unpooled.copiedBuffer("chunk".getBytes()));
+        final LastHttpContent last = new DefaultLastHttpContent(Unpooled.copiedBuffer("last".getBytes()));
+        channel.writeInbound(rejected, chunk, last, request());
+        crypto.release(holder);
+        Assert.assertEquals(0, chunk.refCnt());
+        Assert.assertEquals(0, last.refCnt());
+
+        final SCSFullHttpRequest first = (SCSFullHttpRequest) channel.readInbound();
+        final SCSFullHttpRequest third = (SCSFullHttpRequest) channel.readInbound();
+        Assert.assertNull(channel.readInbound());
+        first.release();
+        third.release();
+        Assert.assertNull(channel.readOutbound());
+
+        // the rejection waits for the response to the first request
+        channel.writeOutbound(new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK));
+        Assert.assertEquals(HttpResponseStatus.OK, ((HttpResponse) channel.readOutbound()).getStatus());
+        Assert.assertNull(channel.readOutbound());
+        channel.writeOutbound(LastHttpContent.EMPTY_LAST_CONTENT);
+        Assert.assertSame(LastHttpContent.EMPTY_LAST_CONTENT, channel.readOutbound());
+        final FullHttpResponse rejection = (FullHttpResponse) channel.readOutbound();
+        Assert.assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, rejection.getStatus());
+        rejection.release();
+
+        channel.writeOutbound(response());
+        ((FullHttpResponse) channel.readOutbound()).release();
+        Assert.assertTrue(channel.isActive());
+        channel.finish();
+    }
+
+    @Test
+    public void trustedStateClearedByServiceTest() throws SCSException {
+        final TrustedHeader trusted = new TrustedHeader("0123456789abcdef".getBytes(), 5000L, Clock.SYSTEM);
+        final EmbeddedChannel channel = new EmbeddedChannel(SCSHandler.builder().service(scsService)
+                .forwardTrusted(trusted).build());
+        final FullHttpRequest original = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/logout");
+        original.headers().set(COOKIE, "SCS=" + scsService.encode("some state").asString());
+        channel.writeInbound(original);
+        final FullHttpRequest request = (FullHttpRequest) channel.readInbound();
+        Assert.assertNull(request.headers().get(COOKIE));
+        Assert.assertEquals("some state",
+                trusted.decodeRequest("POST", "/logout", request.headers().get(TrustedHeader.NAME)));
+        request.release();
+
+        // the service logs the user out
+        final FullHttpResponse response = response();
+        response.headers().set(TrustedHeader.NAME, trusted.encodeResponse("POST", "/logout", null));
+        channel.writeOutbound(response);
+        final FullHttpResponse written = (FullHttpResponse) channel.readOutbound();
+        Assert.assertNull(written.headers().get(TrustedHeader.NAME));
+        final String setCookie = written.headers().get(SET_COOKIE);
+        Assert.assertNotNull(setCookie);
+        Assert.assertTrue(setCookie.startsWith("SCS=;"));
+        Assert.assertTrue(setCookie.endsWith("; Max-Age=0"));
+        written.release();
+        channel.finish();
+    }
+
+    @Test
+    public void refusedTenantIsAnsweredInOrderTest() {
+        final TenantRegistry tenants = new TenantRegistry(new TenantServiceFactory() {
+            @Override
+            public SCSService createService(final String tenantId) {
+                return scsService;
+            }
+        }, 60, Collections.singleton("acme.com"), 2, Clock.SYSTEM);
+        final EmbeddedChannel channel = new EmbeddedChannel(SCSHandler.builder()
+                .tenants(tenants, NettyTenantResolvers.byHost()).build());
+        final FullHttpRequest allowed = request();
+        allowed.headers().set(HttpHeaders.Names.HOST, "acme.com");
+        final FullHttpRequest forged = request();
+        forged.headers().set(HttpHeaders.Names.HOST, "forged.example.com");
+        channel.writeInbound(allowed, forged);
+        ((SCSFullHttpRequest) channel.readInbound()).release();
+        Assert.assertNull(channel.readInbound());
+        Assert.assertEquals(0, forged.refCnt());
+        Assert.assertNull(channel.readOutbound());
+
+        channel.writeOutbound(response());
+        ((FullHttpResponse) channel.readOutbound()).release();
+        final FullHttpResponse refusal = (FullHttpResponse) channel.readOutbound();
+        Assert.assertEquals(HttpResponseStatus.NOT_FOUND, refusal.getStatus());
+        refusal.release();
+        Assert.assertEquals(1, tenants.size());
+        channel.finish();
+    }
+
+    private static FullHttpRequest request() {
+        return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+    }
+
+    private static FullHttpResponse response() {
+        return new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    }
+
+    private String scsState(final HttpResponse response) throws SCSException {
+        for (String header : response.headers().getAll(SET_COOKIE)) {
+            for (Cookie cookie : CookieDecoder.decode(header)) {
+                if ("SCS".equals(cookie.getName()))
+                    return scsService.decode(cookie.getValue()).getData();
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,36 @@
+package com.identityblitz.scs.glue.play;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SCSRequestStatesTest {
+
+    @Test
+    public void abortedRequestIsDroppedTest() throws InterruptedException {
+        // the body of the request is never consumed, so the filter never removes the entry
+        SCSRequestStates.register(1L, "aborted state", false);
+        final AtomicReference<String> processed = SCSRequestStates.register(2L, "processed state", false);
+
+        for(int i = 0; i < 50 && SCSRequestStates.get(1L) != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertNull(SCSRequestStates.get(1L));
+        Assert.assertFalse(SCSRequestStates.change(1L, "changed state"));
+
+        // the collected entry is dropped on the next registration once the reference is enqueued
+        AtomicReference<String> next = SCSRequestStates.register(3L, "next state", false);
+        for(int i = 0; i < 50 && SCSRequestStates.size() > 2; i++) {
+            Thread.sleep(10);
+            next = SCSRequestStates.register(3L, "next state", false);
+        }
+        Assert.assertEquals(2, SCSRequestStates.size());
+        Assert.assertEquals("next state", next.get());
+        Assert.assertTrue(SCSRequestStates.change(2L, "changed state"));
+        Assert.assertEquals("changed state", processed.get());
+        SCSRequestStates.remove(2L);
+        SCSRequestStates.remove(3L);
+    }
+}
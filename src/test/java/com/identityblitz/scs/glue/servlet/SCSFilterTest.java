@@ -0,0 +1,452 @@
+package com.identityblitz.scs.glue.servlet;
+
+import com.identityblitz.scs.Bulkhead;
+import com.identityblitz.scs.Clock;
+import com.identityblitz.scs.SCSContext;
+import com.identityblitz.scs.SCSService;
+import com.identityblitz.scs.TrustedHeader;
+import com.identityblitz.scs.error.SCSBrokenException;
+import com.identityblitz.scs.glue.BasicCryptoService;
+import com.identityblitz.scs.glue.BlockingCryptoService;
+import junit.framework.Assert;
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Test;
+
+import javax.servlet.*;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+public class SCSFilterTest {
+    private static final String SCS_ATTRIBUTE_NAME = "com.identityblitz.scs.requestAttribute";
+
+    private final SCSService scsService = SCSService.builder()
+            .cryptoService(new BasicCryptoService("0123456789abcdef".getBytes(), "01234567890123456789".getBytes()))
+            .cookieName("SCS")
+            .domain("identityblitz.com")
+            .path("/")
+            .sessionMaxAge(3600L)
+            .build();
+
+    @Test
+    public void asyncRequestTest() throws Exception {
+        final AsyncContext asyncMock = EasyMock.createMock(AsyncContext.class);
+        asyncMock.addListener(EasyMock.<AsyncListener>anyObject());
+        EasyMock.expectLastCall();
+        asyncMock.complete();
+        EasyMock.expectLastCall();
+
+        final HttpServletRequest requestMock = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.expect(requestMock.getDispatcherType()).andReturn(DispatcherType.REQUEST).anyTimes();
+        EasyMock.expect(requestMock.getCookies()).andReturn(new Cookie[]{}).anyTimes();
+        EasyMock.expect(requestMock.getContextPath()).andReturn("").anyTimes();
+        EasyMock.expect(requestMock.getRequestURI()).andReturn("/page").anyTimes();
+        EasyMock.expect(requestMock.isAsyncSupported()).andReturn(true).anyTimes();
+        EasyMock.expect(requestMock.isAsyncStarted()).andReturn(true).anyTimes();
+        EasyMock.expect(requestMock.startAsync(EasyMock.<ServletRequest>anyObject(),
+                EasyMock.<ServletResponse>anyObject())).andReturn(asyncMock);
+        EasyMock.expect(requestMock.getAttribute(SCS_ATTRIBUTE_NAME)).andReturn("async state").anyTimes();
+
+        final HttpServletResponse responseMock = EasyMock.createMock(HttpServletResponse.class);
+        final Capture<Cookie> capturedCookie = new Capture<Cookie>();
+        EasyMock.expect(responseMock.isCommitted()).andReturn(false);
+        responseMock.addCookie(EasyMock.capture(capturedCookie));
+        EasyMock.expectLastCall();
+        EasyMock.replay(asyncMock, requestMock, responseMock);
+
+        final AsyncContext[] started = new AsyncContext[1];
+        new SCSFilter(scsService).doFilter(requestMock, responseMock, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                started[0] = request.startAsync();
+            }
+        });
+        Assert.assertFalse(capturedCookie.hasCaptured());
+
+        started[0].complete();
+        Assert.assertEquals("async state", scsService.decode(capturedCookie.getValue().getValue()).getData());
+        EasyMock.verify(asyncMock, responseMock);
+    }
+
+    @Test
+    public void asyncTimeoutTest() throws Exception {
+        final AsyncContext asyncMock = EasyMock.createMock(AsyncContext.class);
+        final Capture<AsyncListener> capturedListener = new Capture<AsyncListener>();
+        asyncMock.addListener(EasyMock.capture(capturedListener));
+        EasyMock.expectLastCall();
+
+        final HttpServletRequest requestMock = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.expect(requestMock.getDispatcherType()).andReturn(DispatcherType.REQUEST).anyTimes();
+        EasyMock.expect(requestMock.getCookies()).andReturn(new Cookie[]{}).anyTimes();
+        EasyMock.expect(requestMock.getContextPath()).andReturn("").anyTimes();
+        EasyMock.expect(requestMock.getRequestURI()).andReturn("/page").anyTimes();
+        EasyMock.expect(requestMock.isAsyncSupported()).andReturn(true).anyTimes();
+        EasyMock.expect(requestMock.isAsyncStarted()).andReturn(true).anyTimes();
+        EasyMock.expect(requestMock.startAsync(EasyMock.<ServletRequest>anyObject(),
+                EasyMock.<ServletResponse>anyObject())).andReturn(asyncMock);
+        EasyMock.expect(requestMock.getAttribute(SCS_ATTRIBUTE_NAME)).andReturn("async state").anyTimes();
+
+        final HttpServletResponse responseMock = EasyMock.createMock(HttpServletResponse.class);
+        final Capture<Cookie> capturedCookie = new Capture<Cookie>();
+        EasyMock.expect(responseMock.isCommitted()).andReturn(false);
+        responseMock.addCookie(EasyMock.capture(capturedCookie));
+        EasyMock.expectLastCall();
+        EasyMock.replay(asyncMock, requestMock, responseMock);
+
+        new SCSFilter(scsService).doFilter(requestMock, responseMock, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                request.startAsync();
+            }
+        });
+        Assert.assertFalse(capturedCookie.hasCaptured());
+
+        // the application never completes the processing, the container times it out and then completes it
+        capturedListener.getValue().onTimeout(new AsyncEvent(asyncMock));
+        Assert.assertEquals("async state", scsService.decode(capturedCookie.getValue().getValue()).getData());
+        capturedListener.getValue().onComplete(new AsyncEvent(asyncMock));
+        EasyMock.verify(asyncMock, responseMock);
+    }
+
+    @Test
+    public void streamingResponseTest() throws Exception {
+        final HttpServletRequest requestMock = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.expect(requestMock.getDispatcherType()).andReturn(DispatcherType.REQUEST).anyTimes();
+        EasyMock.expect(requestMock.getCookies()).andReturn(new Cookie[]{}).anyTimes();
+        EasyMock.expect(requestMock.getContextPath()).andReturn("").anyTimes();
+        EasyMock.expect(requestMock.getRequestURI()).andReturn("/page").anyTimes();
+        EasyMock.expect(requestMock.getAttribute(SCS_ATTRIBUTE_NAME)).andReturn("some state").anyTimes();
+
+        final HttpServletResponse responseMock = EasyMock.createMock(HttpServletResponse.class);
+        final Capture<Cookie> capturedCookie = new Capture<Cookie>();
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        EasyMock.expect(responseMock.getOutputStream()).andReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                Assert.assertTrue(capturedCookie.hasCaptured());
+                written.write(b);
+            }
+
+            public boolean isReady() {
+                return true;
+            }
+
+            public void setWriteListener(WriteListener writeListener) {}
+        });
+        EasyMock.expect(responseMock.isCommitted()).andReturn(false);
+        responseMock.addCookie(EasyMock.capture(capturedCookie));
+        EasyMock.expectLastCall();
+        EasyMock.replay(requestMock, responseMock);
+
+        new SCSFilter(scsService).doFilter(requestMock, responseMock, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                response.getOutputStream().write("chunk".getBytes());
+                response.getOutputStream().write("chunk".getBytes());
+            }
+        });
+        Assert.assertEquals("chunkchunk", written.toString());
+        Assert.assertEquals("some state", scsService.decode(capturedCookie.getValue().getValue()).getData());
+        EasyMock.verify(responseMock);
+    }
+
+    @Test
+    public void writerErrorTest() throws Exception {
+        final HttpServletRequest requestMock = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.expect(requestMock.getDispatcherType()).andReturn(DispatcherType.REQUEST).anyTimes();
+        EasyMock.expect(requestMock.getCookies()).andReturn(new Cookie[]{}).anyTimes();
+        EasyMock.expect(requestMock.getContextPath()).andReturn("").anyTimes();
+        EasyMock.expect(requestMock.getRequestURI()).andReturn("/page").anyTimes();
+
+        final HttpServletResponse responseMock = EasyMock.createNiceMock(HttpServletResponse.class);
+        EasyMock.expect(responseMock.getWriter()).andReturn(new PrintWriter(new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                throw new IOException("connection reset");
+            }
+
+            @Override
+            public void flush() {}
+
+            @Override
+            public void close() {}
+        }));
+        EasyMock.replay(requestMock, responseMock);
+
+        final boolean[] error = new boolean[1];
+        new SCSFilter(scsService).doFilter(requestMock, responseMock, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                response.getWriter().print("chunk");
+                error[0] = response.getWriter().checkError();
+            }
+        });
+        Assert.assertTrue(error[0]);
+    }
+
+    @Test
+    public void excludedRequestTest() throws Exception {
+        final SCSService service = SCSService.builder()
+                .cryptoService(new BasicCryptoService("0123456789abcdef".getBytes(), "01234567890123456789".getBytes()))
+                .exclude("/static/**, *.ico, GET|HEAD /health")
+                .build();
+        final HttpServletRequest requestMock = EasyMock.createMock(HttpServletRequest.class);
+        EasyMock.expect(requestMock.getAttribute("com.identityblitz.scs.glue.servlet.response")).andReturn(null);
+        EasyMock.expect(requestMock.getMethod()).andReturn("GET");
+        EasyMock.expect(requestMock.getContextPath()).andReturn("/app");
+        EasyMock.expect(requestMock.getRequestURI()).andReturn("/app/static/site.css").anyTimes();
+        final HttpServletResponse responseMock = EasyMock.createMock(HttpServletResponse.class);
+        EasyMock.replay(requestMock, responseMock);
+
+        final ServletResponse[] passed = new ServletResponse[1];
+        new SCSFilter(service).doFilter(requestMock, responseMock, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                passed[0] = response;
+            }
+        });
+        Assert.assertSame(responseMock, passed[0]);
+        EasyMock.verify(requestMock, responseMock);
+    }
+
+    @Test
+    public void forwardWithRedirectTest() throws Exception {
+        final DispatcherType[] dispatcherType = {DispatcherType.REQUEST};
+        final HttpServletRequest requestMock = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.expect(requestMock.getDispatcherType()).andAnswer(new IAnswer<DispatcherType>() {
+            @Override
+            public DispatcherType answer() {
+                return dispatcherType[0];
+            }
+        }).anyTimes();
+        EasyMock.expect(requestMock.getCookies()).andReturn(new Cookie[]{}).anyTimes();
+        EasyMock.expect(requestMock.getContextPath()).andReturn("").anyTimes();
+        EasyMock.expect(requestMock.getRequestURI()).andReturn("/page").anyTimes();
+        expectAttributes(requestMock);
+
+        final HttpServletResponse responseMock = EasyMock.createMock(HttpServletResponse.class);
+        final Capture<Cookie> capturedCookie = new Capture<Cookie>();
+        EasyMock.expect(responseMock.isCommitted()).andReturn(false);
+        responseMock.addCookie(EasyMock.capture(capturedCookie));
+        EasyMock.expectLastCall().once();
+        responseMock.sendRedirect("/next");
+        EasyMock.expectLastCall();
+        EasyMock.replay(requestMock, responseMock);
+
+        final SCSFilter filter = new SCSFilter(scsService);
+        filter.doFilter(requestMock, responseMock, new FilterChain() {
+            @Override
+            public void doFilter(final ServletRequest request, final ServletResponse response)
+                    throws IOException, ServletException {
+                dispatcherType[0] = DispatcherType.FORWARD;
+                filter.doFilter(request, response, new FilterChain() {
+                    @Override
+                    public void doFilter(ServletRequest request, ServletResponse response)
+                            throws IOException, ServletException {
+                        SCSService.changeSCS(request, "forwarded state");
+                        ((HttpServletResponse)response).sendRedirect("/next");
+                    }
+                });
+            }
+        });
+        Assert.assertEquals("forwarded state", scsService.decode(capturedCookie.getValue().getValue()).getData());
+        EasyMock.verify(responseMock);
+    }
+
+    @Test
+    public void verifyOnlyTest() throws Exception {
+        final SCSService service = SCSService.builder()
+                .cryptoService(new BasicCryptoService("0123456789abcdef".getBytes(), "01234567890123456789".getBytes()))
+                .verifyOnly(true)
+                .build();
+        final HttpServletRequest requestMock = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.expect(requestMock.getDispatcherType()).andReturn(DispatcherType.REQUEST).anyTimes();
+        EasyMock.expect(requestMock.getCookies()).andReturn(new Cookie[]{
+                new Cookie("SCS", scsService.encode("issued state").asString())}).anyTimes();
+        EasyMock.expect(requestMock.getContextPath()).andReturn("").anyTimes();
+        EasyMock.expect(requestMock.getRequestURI()).andReturn("/page").anyTimes();
+        expectAttributes(requestMock);
+        final HttpServletResponse responseMock = EasyMock.createMock(HttpServletResponse.class);
+        EasyMock.replay(requestMock, responseMock);
+
+        final ServletResponse[] passed = new ServletResponse[1];
+        new SCSFilter(service).doFilter(requestMock, responseMock, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                passed[0] = response;
+                Assert.assertEquals("issued state", SCSService.getSCS(request));
+                try {
+                    SCSService.changeSCS(request, "changed state");
+                    Assert.fail();
+                } catch (IllegalStateException e) {}
+            }
+        });
+        Assert.assertSame(responseMock, passed[0]);
+        EasyMock.verify(responseMock);
+    }
+
+    @Test
+    public void trustedHeaderTest() throws Exception {
+        final TrustedHeader trusted = new TrustedHeader("0123456789abcdef".getBytes(), 5000L, Clock.SYSTEM);
+        final HttpServletRequest requestMock = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.expect(requestMock.getDispatcherType()).andReturn(DispatcherType.REQUEST).anyTimes();
+        EasyMock.expect(requestMock.getHeader(TrustedHeader.NAME))
+                .andReturn(trusted.encodeRequest("GET", "/page", "issued state")).anyTimes();
+        EasyMock.expect(requestMock.getMethod()).andReturn("GET").anyTimes();
+        EasyMock.expect(requestMock.getContextPath()).andReturn("").anyTimes();
+        EasyMock.expect(requestMock.getRequestURI()).andReturn("/page").anyTimes();
+        expectAttributes(requestMock);
+        final HttpServletResponse responseMock = EasyMock.createMock(HttpServletResponse.class);
+        EasyMock.expect(responseMock.isCommitted()).andReturn(false);
+        final Capture<String> returned = new Capture<String>();
+        responseMock.setHeader(EasyMock.eq(TrustedHeader.NAME), EasyMock.capture(returned));
+        EasyMock.replay(requestMock, responseMock);
+
+        new SCSFilter(scsService).acceptTrusted(trusted).doFilter(requestMock, responseMock, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                Assert.assertEquals("issued state", SCSService.getSCS(request));
+                SCSService.changeSCS(request, "changed state");
+            }
+        });
+        EasyMock.verify(responseMock);
+        Assert.assertEquals("changed state", trusted.decodeResponse("GET", "/page", returned.getValue()));
+        try {
+            trusted.decodeRequest("GET", "/page", returned.getValue());
+            Assert.fail();
+        } catch (SCSBrokenException e) {}
+        try {
+            trusted.decodeResponse("POST", "/page", returned.getValue());
+            Assert.fail();
+        } catch (SCSBrokenException e) {}
+        try {
+            trusted.decodeResponse("GET", "/other", returned.getValue());
+            Assert.fail();
+        } catch (SCSBrokenException e) {}
+    }
+
+    @Test
+    public void contextTest() throws Exception {
+        final HttpServletRequest requestMock = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.expect(requestMock.getDispatcherType()).andReturn(DispatcherType.REQUEST).anyTimes();
+        EasyMock.expect(requestMock.getCookies()).andReturn(new Cookie[]{
+                new Cookie("SCS", scsService.encode("issued state").asString())}).anyTimes();
+        EasyMock.expect(requestMock.getContextPath()).andReturn("").anyTimes();
+        EasyMock.expect(requestMock.getRequestURI()).andReturn("/page").anyTimes();
+        expectAttributes(requestMock);
+        final HttpServletResponse responseMock = EasyMock.createNiceMock(HttpServletResponse.class);
+        EasyMock.replay(requestMock, responseMock);
+
+        new SCSFilter(scsService).doFilter(requestMock, responseMock, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                Assert.assertEquals("issued state", SCSContext.current().getSCS());
+                SCSContext.current().changeSCS("changed state");
+                Assert.assertEquals("changed state", SCSService.getSCS(request));
+            }
+        });
+        Assert.assertNull(SCSContext.current());
+    }
+
+    @Test
+    public void shedAsAbsentTest() throws Exception {
+        final BlockingCryptoService crypto = new BlockingCryptoService();
+        final SCSService service = SCSService.builder()
+                .cryptoService(crypto)
+                .cookieName("SCS")
+                .domain("identityblitz.com")
+                .bulkhead(new Bulkhead(1, 0, 0, Bulkhead.Fallback.ABSENT))
+                .build();
+        final String scs = service.encode("issued state").asString();
+        final HttpServletRequest requestMock = shedRequest(scs);
+        // the received cookie may be valid, so it must not be expired
+        final HttpServletResponse responseMock = EasyMock.createMock(HttpServletResponse.class);
+        EasyMock.replay(requestMock, responseMock);
+
+        final boolean[] called = new boolean[1];
+        final Thread holder = crypto.occupy(service, scs);
+        try {
+            new SCSFilter(service).doFilter(requestMock, responseMock, new FilterChain() {
+                @Override
+                public void doFilter(ServletRequest request, ServletResponse response) {
+                    called[0] = true;
+                    Assert.assertNull(SCSService.getSCS(request));
+                }
+            });
+        } finally {
+            crypto.release(holder);
+        }
+        Assert.assertTrue(called[0]);
+        Assert.assertEquals(1L, service.getBulkhead().getShedCount());
+        EasyMock.verify(responseMock);
+    }
+
+    @Test
+    public void shedAsRejectTest() throws Exception {
+        final BlockingCryptoService crypto = new BlockingCryptoService();
+        final SCSService service = SCSService.builder()
+                .cryptoService(crypto)
+                .cookieName("SCS")
+                .domain("identityblitz.com")
+                .bulkhead(new Bulkhead(1, 0, 0, Bulkhead.Fallback.REJECT))
+                .build();
+        final String scs = service.encode("issued state").asString();
+        final HttpServletRequest requestMock = shedRequest(scs);
+        final HttpServletResponse responseMock = EasyMock.createMock(HttpServletResponse.class);
+        responseMock.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        EasyMock.expectLastCall();
+        EasyMock.replay(requestMock, responseMock);
+
+        final Thread holder = crypto.occupy(service, scs);
+        try {
+            new SCSFilter(service).doFilter(requestMock, responseMock, new FilterChain() {
+                @Override
+                public void doFilter(ServletRequest request, ServletResponse response) {
+                    Assert.fail();
+                }
+            });
+        } finally {
+            crypto.release(holder);
+        }
+        EasyMock.verify(responseMock);
+    }
+
+    private static HttpServletRequest shedRequest(final String scs) {
+        final HttpServletRequest requestMock = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.expect(requestMock.getDispatcherType()).andReturn(DispatcherType.REQUEST).anyTimes();
+        EasyMock.expect(requestMock.getCookies()).andReturn(new Cookie[]{new Cookie("SCS", scs)}).anyTimes();
+        EasyMock.expect(requestMock.getContextPath()).andReturn("").anyTimes();
+        EasyMock.expect(requestMock.getRequestURI()).andReturn("/page").anyTimes();
+        expectAttributes(requestMock);
+        return requestMock;
+    }
+
+    /**
+     * Backs the attributes of the request mock by a map, so the attributes set by the filter can be read back.
+     */
+    private static void expectAttributes(final HttpServletRequest requestMock) {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        EasyMock.expect(requestMock.getAttribute(EasyMock.<String>anyObject())).andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                return attributes.get(EasyMock.getCurrentArguments()[0]);
+            }
+        }).anyTimes();
+        requestMock.setAttribute(EasyMock.<String>anyObject(), EasyMock.anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                return attributes.put((String)EasyMock.getCurrentArguments()[0], EasyMock.getCurrentArguments()[1]);
+            }
+        }).anyTimes();
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.identityblitz.scs.tenant;
+
+import com.identityblitz.scs.Clock;
+import com.identityblitz.scs.SCSService;
+import com.identityblitz.scs.glue.BasicConfigurationService;
+import junit.framework.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Collections;
+
+public class TenantRegistryTest {
+
+    @BeforeClass
+    public static void setUp() throws Throwable {
+        System.setProperty("com.identityblitz.scs.crypto.encodingKey", "30313233343536373839616263646566");
+        System.setProperty("com.identityblitz.scs.crypto.hmacKey", "3031323334353637383930313233343536373839");
+        System.setProperty("com.identityblitz.scs.cookieName.acme", "ACME_SCS");
+    }
+
+    @Test
+    public void tenantServiceIsCreatedOnceTest() {
+        final TenantRegistry registry = new TenantRegistry(
+                new ConfigurationTenantServiceFactory(new BasicConfigurationService()), 60);
+        final SCSService acme = registry.getService("acme");
+        Assert.assertSame(acme, registry.getService("acme"));
+        Assert.assertEquals("ACME_SCS", acme.getCookieName());
+        Assert.assertEquals("SCS", registry.getService("other").getCookieName());
+        Assert.assertEquals("SCS", registry.getService(null).getCookieName());
+        Assert.assertEquals(3, registry.size());
+    }
+
+    @Test
+    public void idleTenantIsEvictedTest() {
+        final long[] now = {0L};
+        final TenantRegistry registry = new TenantRegistry(
+                new ConfigurationTenantServiceFactory(new BasicConfigurationService()), 60, new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return now[0];
+            }
+        });
+        final SCSService idle = registry.getService("idle");
+        registry.getService("active");
+        now[0] = 40 * 1000L;
+        registry.getService("active");
+        now[0] = 90 * 1000L;
+        registry.getService("active");
+        Assert.assertEquals(1, registry.size());
+        Assert.assertNotSame(idle, registry.getService("idle"));
+    }
+
+    @Test
+    public void unknownTenantIsRefusedTest() {
+        final TenantRegistry registry = new TenantRegistry(
+                new ConfigurationTenantServiceFactory(new BasicConfigurationService()), 60,
+                Collections.singleton("acme"), 2, Clock.SYSTEM);
+        Assert.assertNotNull(registry.getService(null));
+        Assert.assertEquals("ACME_SCS", registry.getService("acme").getCookieName());
+        Assert.assertNull(registry.getService("forged.example.com"));
+        Assert.assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void tenantCountIsBoundedTest() {
+        final TenantRegistry registry = new TenantRegistry(
+                new ConfigurationTenantServiceFactory(new BasicConfigurationService()), 60, null, 2, Clock.SYSTEM);
+        final SCSService first = registry.getService("first");
+        final SCSService common = registry.getService(null);
+        // the tenant over the limit is refused, not downgraded to the default tenant
+        Assert.assertNull(registry.getService("second"));
+        Assert.assertSame(first, registry.getService("first"));
+        Assert.assertSame(common, registry.getService(null));
+        Assert.assertEquals(2, registry.size());
+    }
+
+}